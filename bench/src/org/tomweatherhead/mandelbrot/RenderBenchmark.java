@@ -0,0 +1,134 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.math.BigDecimal;
+
+/**
+ * Measures how fast MandelbrotRenderer renders a set of standard views, at
+ * several canvas sizes and iteration limits, on a plain JVM.
+ *
+ * Each view is rendered from scratch (the framebuffer's previous view and
+ * the tile cache are discarded first), a few times to warm up the JIT and
+ * then a few times more to be measured. The report gives the best and mean
+ * time per frame, the pixel rate, and the iteration rate, where the
+ * iteration count of a frame is the sum of its pixels' escape-time counts.
+ *
+ * Usage:
+ *
+ *   java org.tomweatherhead.mandelbrot.RenderBenchmark [sizes] [limits] [threads] [distanceEstimation]
+ *
+ * where sizes and limits are comma-separated lists, e.g. "256,512,1024" and
+ * "0,1024", a limit of 0 meaning the limit for the view's zoom level, and
+ * threads is the number of worker threads (default: one per core). With
+ * distanceEstimation "true", the views are rendered with distance-estimate
+ * guided rendering (default: false).
+ */
+public final class RenderBenchmark {
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    /** A view to render: its centre and zoom level */
+    private static final class StandardView {
+        final String name;
+        final BigDecimal centreR;
+        final BigDecimal centreI;
+        final int zoomExponent;
+
+        StandardView(String name, String centreR, String centreI, int zoomExponent) {
+            this.name = name;
+            this.centreR = new BigDecimal(centreR);
+            this.centreI = new BigDecimal(centreI);
+            this.zoomExponent = zoomExponent;
+        }
+    }
+
+    private static final StandardView[] VIEWS = {
+        new StandardView("home", "-0.75", "0", 0),
+        new StandardView("seahorse-valley", "-0.7453", "0.1127", 12),
+        // c = i is a Misiurewicz point whose repelling cycle has a non-real multiplier,
+        // so the set spirals around it at every depth. Zoom 100 uses the perturbation kernel.
+        new StandardView("deep-spiral", "0", "1", 100),
+        // Inside the period-3 bulb, clear of the main cardioid: every point runs to the
+        // limit or is caught by the periodicity check.
+        new StandardView("all-interior", "-0.1226", "0.7449", 6)
+    };
+
+    private RenderBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = parseList(args.length > 0 ? args[0] : "256,512");
+        int[] limits = parseList(args.length > 1 ? args[1] : "0,1024");
+        ParallelRenderer parallelRenderer = args.length > 2
+                ? new ParallelRenderer(Integer.parseInt(args[2])) : new ParallelRenderer();
+        boolean distanceEstimation = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+        System.out.println("threads: " + parallelRenderer.getNumThreads());
+        System.out.printf("%-16s %6s %6s %10s %10s %12s %12s%n",
+                "view", "size", "limit", "best ms", "mean ms", "Mpixels/s", "Miters/s");
+
+        try {
+            for (StandardView view : VIEWS) {
+
+                for (int size : sizes) {
+
+                    for (int limit : limits) {
+                        run(parallelRenderer, view, size, limit, distanceEstimation);
+                    }
+                }
+            }
+        } finally {
+            parallelRenderer.shutdown();
+        }
+    }
+
+    private static void run(ParallelRenderer parallelRenderer, StandardView view, int size, int limit,
+            boolean distanceEstimation) {
+        MandelbrotRenderer renderer = new MandelbrotRenderer(parallelRenderer);
+
+        renderer.setCanvasSize(size, size);
+        renderer.setDistanceEstimation(distanceEstimation);
+        renderer.zoomTo(view.centreR, view.centreI, view.zoomExponent);
+        renderer.setMaxNumIterations(limit);
+
+        long bestNanos = Long.MAX_VALUE;
+        long totalNanos = 0;
+        long iterations = 0;
+
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; ++run) {
+            renderer.getFrame().discardView();
+            renderer.getTileCache().clear();
+
+            long start = System.nanoTime();
+
+            renderer.render();
+
+            long nanos = System.nanoTime() - start;
+
+            if (run >= WARMUP_RUNS) {
+                bestNanos = Math.min(bestNanos, nanos);
+                totalNanos += nanos;
+            }
+        }
+
+        for (int value : renderer.getFrame().iterations) {
+            iterations += MandelbrotKernel.countOf(value);
+        }
+
+        double bestSeconds = bestNanos * 1.0e-9;
+
+        System.out.printf("%-16s %6d %6d %10.2f %10.2f %12.2f %12.2f%n",
+                view.name, size, renderer.getMaxNumIterations(), bestNanos * 1.0e-6, totalNanos * 1.0e-6 / MEASURED_RUNS,
+                (double)size * size / bestSeconds * 1.0e-6, iterations / bestSeconds * 1.0e-6);
+    }
+
+    private static int[] parseList(String s) {
+        String[] items = s.split(",");
+        int[] values = new int[items.length];
+
+        for (int i = 0; i < items.length; ++i) {
+            values[i] = Integer.parseInt(items[i].trim());
+        }
+
+        return values;
+    }
+}
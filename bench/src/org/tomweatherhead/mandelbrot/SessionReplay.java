@@ -0,0 +1,361 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a session recorded by the app (see SessionRecording; "Save
+ * Session" in the menu) against MandelbrotRenderer on a plain JVM, with the
+ * events coming at their recorded times, and reports how long each kind of
+ * event took to show: to the first pass (when every FIRST_PASS_RESOLUTION x
+ * FIRST_PASS_RESOLUTION square of the new view has been sampled) and to the
+ * complete view.
+ *
+ * The replay runs the render thread's loop: the events are queued by a
+ * thread of their own, which cancels the band that is being rendered if the
+ * event changes the view, as MandelbrotThread.post() does; and between
+ * bands the queued events are applied as the render thread's commands
+ * apply them. An event that changes the view before the last one is
+ * complete supersedes it: the superseded events are counted, and left out
+ * of the completion percentiles. Events that leave the view as it is (e.g.
+ * a tap at the deepest zoom) are counted too.
+ *
+ * Usage:
+ *
+ *   java org.tomweatherhead.mandelbrot.SessionReplay session.txt [threads] [speed] [size]
+ *
+ * where threads is the number of worker threads (default: one per core),
+ * speed divides the times between events (default: 1, as recorded), and
+ * size is the canvas size until the session sets one, e.g. "1080x1920"
+ * (default: 720x1280).
+ */
+public final class SessionReplay {
+    /** The width of the squares that the first pass that counts has sampled */
+    private static final int FIRST_PASS_RESOLUTION = 16;
+
+    /** What became of one event that changed the view */
+    private static final class Latency {
+        final String type;
+        final long startNanos;
+        long firstPassNanos = -1;
+        long completeNanos = -1;
+        boolean superseded = false;
+
+        Latency(String type, long startNanos) {
+            this.type = type;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /** An event with the time at which it was queued */
+    private static final class QueuedEvent {
+        final SessionRecording.Event event;
+        final long queuedNanos;
+
+        QueuedEvent(SessionRecording.Event event, long queuedNanos) {
+            this.event = event;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    /* The render thread's modes, as in MandelbrotThread */
+    private static final int STATE_DONE = 1;
+    private static final int STATE_PAUSE = 2;
+    private static final int STATE_READY = 3;
+    private static final int STATE_RUNNING = 4;
+
+    private final MandelbrotRenderer mRenderer;
+    private final ConcurrentLinkedQueue<QueuedEvent> mQueue = new ConcurrentLinkedQueue<QueuedEvent>();
+    private final List<Latency> mLatencies = new ArrayList<Latency>();
+    private final Map<String, Integer> mUnchanged = new LinkedHashMap<String, Integer>();
+    private volatile boolean mFeeding = true;
+    private int mMode = STATE_READY;
+    private int mWidth;
+    private int mHeight;
+
+    /** The latest event that changed the view, until its view is complete */
+    private Latency mPending = null;
+
+    private SessionReplay(ParallelRenderer parallelRenderer, int width, int height) {
+        mRenderer = new MandelbrotRenderer(parallelRenderer);
+        mWidth = width;
+        mHeight = height;
+        mRenderer.setCanvasSize(width, height);
+        mRenderer.goHome();
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.err.println("Usage: SessionReplay session.txt [threads] [speed] [size]");
+            System.exit(1);
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
+        SessionRecording recording;
+
+        try {
+            recording = SessionRecording.read(reader);
+        } finally {
+            reader.close();
+        }
+
+        ParallelRenderer parallelRenderer = args.length > 1
+                ? new ParallelRenderer(Integer.parseInt(args[1])) : new ParallelRenderer();
+        double speed = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+        String[] size = (args.length > 3 ? args[3] : "720x1280").split("x");
+
+        try {
+            SessionReplay replay = new SessionReplay(parallelRenderer, Integer.parseInt(size[0]),
+                    Integer.parseInt(size.length > 1 ? size[1] : size[0]));
+
+            System.out.printf("%d events, %d threads, speed %.2fx%n", recording.getEvents().size(),
+                    parallelRenderer.getNumThreads(), speed);
+            replay.replay(recording.getEvents(), speed);
+            replay.report();
+        } finally {
+            parallelRenderer.shutdown();
+        }
+    }
+
+    /** Replays the events, and returns when they have all been applied and the last view is done. */
+    private void replay(final List<SessionRecording.Event> events, final double speed) {
+        final Thread renderThread = Thread.currentThread();
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+
+                for (SessionRecording.Event event : events) {
+                    long due = start + (long)(event.nanos / speed);
+                    long wait;
+
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+
+                    if (changesView(event.type)) {
+                        mRenderer.cancel();
+                    }
+
+                    mQueue.offer(new QueuedEvent(event, System.nanoTime()));
+                    LockSupport.unpark(renderThread);
+                }
+
+                mFeeding = false;
+                LockSupport.unpark(renderThread);
+            }
+        }, "SessionReplayFeeder");
+
+        feeder.setDaemon(true);
+        feeder.start();
+
+        while (true) {
+            QueuedEvent queued;
+
+            while ((queued = mQueue.poll()) != null) {
+                apply(queued.event, queued.queuedNanos);
+            }
+
+            if (mMode == STATE_READY) {
+                mRenderer.startView();
+                mMode = STATE_RUNNING;
+                notePass();
+            } else if (mMode == STATE_RUNNING) {
+                mRenderer.renderNextBand();
+                notePass();
+            } else if (mFeeding || !mQueue.isEmpty()) {
+                // The feeder unparks this thread after queueing each event, so no event is missed.
+                if (mQueue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static boolean changesView(String type) {
+        return !type.equals(SessionRecording.PAUSE) && !type.equals(SessionRecording.RESUME);
+    }
+
+    /** Applies an event as the render thread's command for it does. */
+    private void apply(SessionRecording.Event event, long queuedNanos) {
+        String type = event.type;
+        boolean changed;
+
+        if (type.equals(SessionRecording.TAP)) {
+            int x = event.getInt(0);
+            int y = event.getInt(1);
+
+            changed = x >= 0 && x < mWidth && y >= 0 && y < mHeight && !mRenderer.isAtMaxZoom()
+                    && mRenderer.zoomIn(x, y);
+        } else if (type.equals(SessionRecording.JULIA)) {
+            double[] c = mRenderer.getMandelbrotPoint(event.getInt(0), event.getInt(1));
+
+            mRenderer.setJulia(c[0], c[1]);
+            changed = true;
+        } else if (type.equals(SessionRecording.MANDELBROT)) {
+            changed = mRenderer.exitJulia();
+        } else if (type.equals(SessionRecording.HOME)) {
+            changed = mRenderer.goHome();
+        } else if (type.equals(SessionRecording.ZOOM_OUT)) {
+            changed = mRenderer.zoomOut();
+        } else if (type.equals(SessionRecording.MOVE)) {
+            double scale = event.getDouble(0);
+            double centreX = mWidth / 2.0;
+            double centreY = mHeight / 2.0;
+
+            changed = mRenderer.moveView((centreX - event.getDouble(1)) / scale,
+                    (centreY - event.getDouble(2)) / scale, centreX, centreY,
+                    (int)Math.round(Math.log(scale) / Math.log(2.0)));
+        } else if (type.equals(SessionRecording.SIZE)) {
+            mWidth = event.getInt(0);
+            mHeight = event.getInt(1);
+            mRenderer.setCanvasSize(mWidth, mHeight);
+            changed = true;
+        } else if (type.equals(SessionRecording.VIEW)) {
+
+            if (event.args.length > 6) {
+                mRenderer.setJulia(event.getDouble(6), event.getDouble(7));
+                mRenderer.setMandelbrotView(new BigDecimal(event.args[8]), new BigDecimal(event.args[9]),
+                        event.getInt(10), event.getInt(11));
+            } else {
+                mRenderer.exitJulia();
+            }
+
+            mRenderer.setView(new BigDecimal(event.args[0]), new BigDecimal(event.args[1]), event.getDouble(2),
+                    event.getDouble(3), event.getInt(4), event.getInt(5));
+            mMode = STATE_PAUSE;		// A restored view waits to be resumed.
+            return;
+        } else if (type.equals(SessionRecording.PAUSE)) {
+
+            if (mMode == STATE_RUNNING) {
+                mMode = STATE_PAUSE;
+            }
+
+            return;
+        } else if (type.equals(SessionRecording.RESUME)) {
+            mMode = STATE_RUNNING;
+            return;
+        } else {
+            System.err.println("Skipping an unknown event: " + type);
+            return;
+        }
+
+        if (!changed) {
+            Integer count = mUnchanged.get(type);
+
+            mUnchanged.put(type, count == null ? 1 : count + 1);
+            return;
+        }
+
+        if (mPending != null) {
+            mPending.superseded = true;
+        }
+
+        mPending = new Latency(type, queuedNanos);
+        mLatencies.add(mPending);
+        mMode = STATE_READY;
+    }
+
+    /** Records the first pass and the completion of the pending event's view, after a band. */
+    private void notePass() {
+        long now = System.nanoTime();
+
+        if (mPending != null && mPending.firstPassNanos < 0
+                && mRenderer.getResolution() <= FIRST_PASS_RESOLUTION) {
+            mPending.firstPassNanos = now - mPending.startNanos;
+        }
+
+        if (mRenderer.isComplete()) {
+
+            if (mPending != null) {
+                mPending.completeNanos = now - mPending.startNanos;
+                mPending = null;
+            }
+
+            mMode = STATE_DONE;
+        }
+    }
+
+    private void report() {
+        Map<String, List<Latency>> byType = new LinkedHashMap<String, List<Latency>>();
+
+        byType.put("all", mLatencies);
+
+        for (Latency latency : mLatencies) {
+            List<Latency> list = byType.get(latency.type);
+
+            if (list == null) {
+                list = new ArrayList<Latency>();
+                byType.put(latency.type, list);
+            }
+
+            list.add(latency);
+        }
+
+        System.out.printf("%-10s %6s %6s  %-34s %-34s%n", "event", "count", "supers",
+                "first pass ms: p50 p90 p99 max", "complete ms: p50 p90 p99 max");
+
+        for (Map.Entry<String, List<Latency>> entry : byType.entrySet()) {
+            List<Latency> latencies = entry.getValue();
+            long[] firstPass = new long[latencies.size()];
+            long[] complete = new long[latencies.size()];
+            int numFirstPass = 0;
+            int numComplete = 0;
+            int numSuperseded = 0;
+
+            for (Latency latency : latencies) {
+
+                if (latency.firstPassNanos >= 0) {
+                    firstPass[numFirstPass++] = latency.firstPassNanos;
+                }
+
+                if (latency.superseded) {
+                    ++numSuperseded;
+                } else if (latency.completeNanos >= 0) {
+                    complete[numComplete++] = latency.completeNanos;
+                }
+            }
+
+            System.out.printf("%-10s %6d %6d  %-34s %-34s%n", entry.getKey(), latencies.size(), numSuperseded,
+                    percentiles(firstPass, numFirstPass), percentiles(complete, numComplete));
+        }
+
+        for (Map.Entry<String, Integer> entry : mUnchanged.entrySet()) {
+            System.out.printf("%d %s events left the view as it was%n", entry.getValue(), entry.getKey());
+        }
+    }
+
+    /** Returns the 50th, 90th and 99th percentiles and the maximum of the first count values, in ms. */
+    private static String percentiles(long[] values, int count) {
+
+        if (count == 0) {
+            return "-";
+        }
+
+        long[] sorted = Arrays.copyOf(values, count);
+
+        Arrays.sort(sorted);
+        return String.format("%8.1f %8.1f %8.1f %8.1f", percentile(sorted, 0.50) * 1.0e-6,
+                percentile(sorted, 0.90) * 1.0e-6, percentile(sorted, 0.99) * 1.0e-6, sorted[count - 1] * 1.0e-6);
+    }
+
+    /** Returns the nearest-rank percentile of sorted values. */
+    private static long percentile(long[] sorted, double p) {
+        int rank = (int)Math.ceil(p * sorted.length);
+
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
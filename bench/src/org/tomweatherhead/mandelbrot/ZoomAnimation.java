@@ -0,0 +1,129 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.zip.Deflater;
+
+/**
+ * Renders a zoom animation from the home view down to a target point with
+ * ZoomAnimator, and writes its frames to PNG files. Then, unless told not
+ * to, renders the same frames naively, each from scratch at its own zoom,
+ * and compares the frame rates. The PNG files' writing is not counted in
+ * either rate.
+ *
+ * Usage:
+ *
+ *   java org.tomweatherhead.mandelbrot.ZoomAnimation size centreR centreI zoom [framesPerOctave] [directory] [naive]
+ *
+ * where size is e.g. "640x480" or "512", directory is where the frames
+ * are written (default: not written, "-" for the same), and naive is
+ * "true" or "false" (default: true).
+ */
+public final class ZoomAnimation {
+
+    private ZoomAnimation() {
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 4) {
+            System.err.println("Usage: ZoomAnimation size centreR centreI zoom [framesPerOctave] [directory] [naive]");
+            System.exit(1);
+        }
+
+        String[] size = args[0].split("x");
+        int width = Integer.parseInt(size[0]);
+        int height = size.length > 1 ? Integer.parseInt(size[1]) : width;
+        BigDecimal centreR = new BigDecimal(args[1]);
+        BigDecimal centreI = new BigDecimal(args[2]);
+        int zoomExponent = Integer.parseInt(args[3]);
+        int framesPerOctave = args.length > 4 ? Integer.parseInt(args[4]) : ZoomAnimator.DEFAULT_FRAMES_PER_OCTAVE;
+        final File directory = args.length > 5 && !args[5].equals("-") ? new File(args[5]) : null;
+        boolean naive = args.length <= 6 || Boolean.parseBoolean(args[6]);
+        ParallelRenderer parallelRenderer = new ParallelRenderer();
+
+        if (directory != null) {
+            directory.mkdirs();
+        }
+
+        try {
+            ZoomAnimator animator = new ZoomAnimator(parallelRenderer, width, height);
+            final long[] writeNanos = { 0 };
+
+            animator.setFramesPerOctave(framesPerOctave);
+
+            long start = System.nanoTime();
+            int numFrames = animator.animate(centreR, centreI, zoomExponent, new ZoomAnimator.FrameSink() {
+                @Override
+                public void writeFrame(int index, int[] pixels, int width, int height) throws IOException {
+
+                    if (directory != null) {
+                        long writeStart = System.nanoTime();
+
+                        writePng(new File(directory, String.format("frame-%05d.png", index)), pixels, width, height);
+                        writeNanos[0] += System.nanoTime() - writeStart;
+                    }
+                }
+            });
+            double seconds = (System.nanoTime() - start - writeNanos[0]) * 1.0e-9;
+
+            System.out.printf("%d frames of %dx%d, %d per 2x zoom%n", numFrames, width, height, framesPerOctave);
+            System.out.printf("%-10s %10.2f s %10.2f frames/s%n", "keyframes", seconds, numFrames / seconds);
+
+            if (naive) {
+                double naiveSeconds = renderNaively(parallelRenderer, width, height, centreR, centreI,
+                        framesPerOctave, numFrames);
+
+                System.out.printf("%-10s %10.2f s %10.2f frames/s%n", "naive", naiveSeconds, numFrames / naiveSeconds);
+                System.out.printf("speed-up   %10.2fx%n", naiveSeconds / seconds);
+            }
+        } finally {
+            parallelRenderer.shutdown();
+        }
+    }
+
+    /** Renders each frame of the animation from scratch, and returns the time taken in seconds. */
+    private static double renderNaively(ParallelRenderer parallelRenderer, int width, int height,
+            BigDecimal centreR, BigDecimal centreI, int framesPerOctave, int numFrames) {
+        MandelbrotRenderer renderer = new MandelbrotRenderer(parallelRenderer);
+
+        renderer.setCanvasSize(width, height);
+        renderer.goHome();
+
+        double homeWidth = renderer.getViewWidth();
+        double homeHeight = renderer.getViewHeight();
+        long start = System.nanoTime();
+
+        for (int frame = 0; frame < numFrames; ++frame) {
+            double scale = Math.pow(0.5, (double)frame / framesPerOctave);
+            double viewWidth = homeWidth * scale;
+            double viewHeight = homeHeight * scale;
+
+            renderer.setView(centreR.subtract(new BigDecimal(viewWidth / 2.0)),
+                    centreI.add(new BigDecimal(viewHeight / 2.0)), viewWidth, viewHeight,
+                    frame / framesPerOctave, 0);
+            renderer.getFrame().discardView();
+            renderer.getTileCache().clear();
+            renderer.render();
+        }
+
+        return (System.nanoTime() - start) * 1.0e-9;
+    }
+
+    private static void writePng(File file, int[] pixels, int width, int height) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+
+        try {
+            PngWriter writer = new PngWriter(out, width, height, Deflater.BEST_SPEED);
+
+            writer.writeRows(pixels, 0, height);
+            writer.finish();
+        } finally {
+            out.close();
+        }
+    }
+}
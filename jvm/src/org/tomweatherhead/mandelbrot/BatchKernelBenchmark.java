@@ -0,0 +1,144 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.incubator.vector.DoubleVector;
+
+/**
+ * Compares VectorBatchKernel with ScalarBatchKernel on the points of a few
+ * standard views, and checks that the vector kernel gives exactly the
+ * scalar counts.
+ *
+ * VectorBatchKernel's width is fixed when its class is loaded, so each
+ * width is measured in a JVM of its own: run without the
+ * mandelbrot.vectorBits property, the benchmark runs itself once for each
+ * of 128, 256 and 512 bits (2, 4 and 8 lanes).
+ *
+ * The points are handed over one row at a time, as the progressive passes
+ * hand over the samples of a row of squares.
+ *
+ * Usage (the Vector API is an incubator module):
+ *
+ *   java --add-modules jdk.incubator.vector org.tomweatherhead.mandelbrot.BatchKernelBenchmark [size] [limit]
+ */
+public final class BatchKernelBenchmark {
+    private static final int WARMUP_RUNS = 10;
+    private static final int MEASURED_RUNS = 5;
+
+    private static final int[] VECTOR_BITS = { 128, 256, 512 };
+
+    /* name, left, top, width of each view */
+    private static final String[] VIEW_NAMES = { "home", "seahorse-valley", "all-interior" };
+    private static final double[][] VIEWS = {
+        { -2.25, 1.5, 3.0 },
+        { -0.7453 - 3.0 / 8192, 0.1127 + 3.0 / 8192, 3.0 / 4096 },
+        { -0.1226 - 3.0 / 128, 0.7449 + 3.0 / 128, 3.0 / 64 }
+    };
+
+    private BatchKernelBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        if (System.getProperty(VectorBatchKernel.VECTOR_BITS_PROPERTY) == null) {
+            System.out.println("preferred lane width: " + DoubleVector.SPECIES_PREFERRED.length());
+
+            for (int bits : VECTOR_BITS) {
+                runForked(bits, args);
+            }
+
+            return;
+        }
+
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int limit = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        VectorBatchKernel vectorKernel = new VectorBatchKernel();
+        String vectorName = VectorBatchKernel.getLaneCount() + " lanes";
+
+        System.out.println();
+        System.out.println(size + " x " + size + " points, limit " + limit);
+        System.out.printf("%-16s %-10s %10s %12s %9s %s%n", "view", "kernel", "best ms", "Mpoints/s", "speed-up", "check");
+
+        for (int v = 0; v < VIEWS.length; ++v) {
+            double[][] cr = new double[size][size];
+            double[][] ci = new double[size][size];
+            double pixelSize = VIEWS[v][2] / size;
+
+            for (int y = 0; y < size; ++y) {
+
+                for (int x = 0; x < size; ++x) {
+                    cr[y][x] = VIEWS[v][0] + x * pixelSize;
+                    ci[y][x] = VIEWS[v][1] - y * pixelSize;
+                }
+            }
+
+            int[][] expected = new int[size][size];
+            int[][] results = new int[size][size];
+            long scalarNanos = time(ScalarBatchKernel.INSTANCE, cr, ci, limit, expected);
+            long nanos = time(vectorKernel, cr, ci, limit, results);
+            int mismatches = 0;
+
+            for (int y = 0; y < size; ++y) {
+
+                for (int x = 0; x < size; ++x) {
+
+                    if (results[y][x] != expected[y][x]) {
+                        ++mismatches;
+                    }
+                }
+            }
+
+            report(VIEW_NAMES[v], "scalar", scalarNanos, scalarNanos, size, "-");
+            report(VIEW_NAMES[v], vectorName, nanos, scalarNanos, size,
+                mismatches == 0 ? "identical" : mismatches + " MISMATCHES");
+        }
+    }
+
+    /** Runs the benchmark in a new JVM with the vector width set to bits. */
+    private static void runForked(int bits, String[] args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("--add-modules");
+        command.add("jdk.incubator.vector");
+        command.add("-D" + VectorBatchKernel.VECTOR_BITS_PROPERTY + "=" + bits);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BatchKernelBenchmark.class.getName());
+
+        for (String arg : args) {
+            command.add(arg);
+        }
+
+        new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    /** Returns the best time to calculate every row, and leaves the counts in results. */
+    private static long time(MandelbrotBatchKernel kernel, double[][] cr, double[][] ci, int limit, int[][] results) {
+        long bestNanos = Long.MAX_VALUE;
+
+        for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; ++run) {
+            long start = System.nanoTime();
+
+            for (int y = 0; y < cr.length; ++y) {
+                kernel.iterate(cr[y], ci[y], cr[y].length, limit, results[y]);
+            }
+
+            long nanos = System.nanoTime() - start;
+
+            if (run >= WARMUP_RUNS) {
+                bestNanos = Math.min(bestNanos, nanos);
+            }
+        }
+
+        return bestNanos;
+    }
+
+    private static void report(String view, String kernel, long nanos, long scalarNanos, int size, String check) {
+        System.out.printf("%-16s %-10s %10.2f %12.2f %8.2fx %s%n", view, kernel, nanos * 1.0e-6,
+            (double)size * size / (nanos * 1.0e-9) * 1.0e-6, (double)scalarNanos / nanos, check);
+    }
+}
@@ -0,0 +1,148 @@
+package org.tomweatherhead.mandelbrot;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A batch kernel that iterates a vector's width of points together with the
+ * Java Vector API (jdk.incubator.vector, JDK 16 and later), for desktop
+ * builds of the render core. Android has no Vector API, so this class is
+ * kept out of src/.
+ *
+ * Each lane follows MandelbrotKernel.iterate() exactly: the same cardioid
+ * and bulb test, the same arithmetic in the same order (so every lane's
+ * orbit is bit-for-bit the scalar orbit), and the same periodicity check.
+ * The fraction of an iteration is then worked out by the scalar
+ * MandelbrotKernel.escapeValue() from the point at which each lane escaped.
+ * Lanes that escape or repeat are masked off and keep their count; the
+ * batch stops when no lane is active. The periodicity check interval
+ * depends only on the iteration number, so all lanes share it. Points left
+ * over at the end of a batch are calculated by the scalar kernel.
+ */
+final class VectorBatchKernel implements MandelbrotBatchKernel {
+    /** The system property that sets the vector width in bits: 128, 256 or 512 */
+    static final String VECTOR_BITS_PROPERTY = "mandelbrot.vectorBits";
+
+    /*
+     * The Vector API compiles to SIMD instructions only where the species is
+     * a constant, so it is a static final field, chosen once when the class
+     * is loaded: the widest vectors that the hardware supports, or the width
+     * set by the mandelbrot.vectorBits property. (A species passed as a
+     * parameter, or held in an instance field, falls back to boxed vector
+     * objects and is far slower than the scalar kernel.)
+     */
+    private static final VectorSpecies<Double> SPECIES = VectorSpecies.of(double.class,
+        VectorShape.forBitSize(Integer.getInteger(VECTOR_BITS_PROPERTY, DoubleVector.SPECIES_PREFERRED.vectorBitSize())));
+
+    /** Returns the number of points that are iterated together. */
+    public static int getLaneCount() {
+        return SPECIES.length();
+    }
+
+    @Override
+    public void iterate(double[] cr, double[] ci, int count, int maxNumIterations, int[] results) {
+        int lanes = SPECIES.length();
+        int bound = SPECIES.loopBound(count);
+        double[] counts = new double[lanes];
+        double[] stops = new double[lanes];
+        double[] escapedZr = new double[lanes];
+        double[] escapedZi = new double[lanes];
+        int i = 0;
+
+        for (; i < bound; i += lanes) {
+            iterateLanes(cr, ci, i, maxNumIterations, counts, stops, escapedZr, escapedZi);
+
+            for (int lane = 0; lane < lanes; ++lane) {
+                int n = (int)counts[lane];
+
+                results[i + lane] = n < maxNumIterations
+                    ? MandelbrotKernel.escapeValue(n, escapedZr[lane], escapedZi[lane], cr[i + lane], ci[i + lane])
+                    : MandelbrotKernel.notEscaped(maxNumIterations, (int)stops[lane]);
+            }
+        }
+
+        for (; i < count; ++i) {
+            results[i] = MandelbrotKernel.iterate(cr[i], ci[i], maxNumIterations);
+        }
+    }
+
+    /**
+     * Iterates the points offset to offset + getLaneCount() - 1, and stores
+     * their iteration counts in counts (maxNumIterations for the points that
+     * do not escape), and the points of their orbits at which they escaped in
+     * escapedZr and escapedZi. For the points that do not escape, stops gets
+     * the number of iterations that the scalar kernel would have run: 0 for
+     * the cardioid and the bulb, the iteration at which the orbit repeated,
+     * or the limit.
+     */
+    private static void iterateLanes(double[] crs, double[] cis, int offset, int maxNumIterations,
+            double[] counts, double[] stops, double[] escapedZr, double[] escapedZi) {
+        DoubleVector cr = DoubleVector.fromArray(SPECIES, crs, offset);
+        DoubleVector ci = DoubleVector.fromArray(SPECIES, cis, offset);
+
+        // Lanes that never escape keep the iteration limit.
+        DoubleVector result = DoubleVector.broadcast(SPECIES, maxNumIterations);
+        VectorMask<Double> active = isInMainCardioidOrPeriod2Bulb(cr, ci).not();
+        DoubleVector stop = DoubleVector.zero(SPECIES).blend(result, active);
+        DoubleVector zr = cr;
+        DoubleVector zi = ci;
+        DoubleVector savedZr = zr;
+        DoubleVector savedZi = zi;
+        DoubleVector escapeZr = zr;
+        DoubleVector escapeZi = zi;
+        int periodCheckInterval = MandelbrotKernel.INITIAL_PERIOD_CHECK_INTERVAL;
+        int periodCheckCountdown = periodCheckInterval;
+
+        for (int n = 0; n < maxNumIterations && active.anyTrue(); ++n) {
+            DoubleVector zr2 = zr.mul(zr);
+            DoubleVector zi2 = zi.mul(zi);
+            VectorMask<Double> escaped = zr2.add(zi2).compare(VectorOperators.GE, 4.0).and(active);
+
+            result = result.blend(DoubleVector.broadcast(SPECIES, n), escaped);
+            escapeZr = escapeZr.blend(zr, escaped);
+            escapeZi = escapeZi.blend(zi, escaped);
+            active = active.andNot(escaped);
+
+            DoubleVector tempzr = zr2.sub(zi2).add(cr);
+
+            zi = zr.mul(2.0).mul(zi).add(ci);
+            zr = tempzr;
+
+            // A lane whose orbit repeats is in the set, and keeps the iteration limit.
+            VectorMask<Double> repeated = zr.eq(savedZr).and(zi.eq(savedZi)).and(active);
+
+            stop = stop.blend(DoubleVector.broadcast(SPECIES, n + 1), repeated);
+            active = active.andNot(repeated);
+
+            // Move the check point with a blend rather than a branch: a vector that is
+            // assigned on one branch only is boxed on every iteration.
+            VectorMask<Double> save = SPECIES.maskAll(--periodCheckCountdown == 0);
+
+            savedZr = savedZr.blend(zr, save);
+            savedZi = savedZi.blend(zi, save);
+
+            if (periodCheckCountdown == 0) {
+                periodCheckInterval *= 2;
+                periodCheckCountdown = periodCheckInterval;
+            }
+        }
+
+        result.intoArray(counts, 0);
+        stop.intoArray(stops, 0);
+        escapeZr.intoArray(escapedZr, 0);
+        escapeZi.intoArray(escapedZi, 0);
+    }
+
+    /** MandelbrotKernel.isInMainCardioidOrPeriod2Bulb(), lane by lane */
+    private static VectorMask<Double> isInMainCardioidOrPeriod2Bulb(DoubleVector cr, DoubleVector ci) {
+        DoubleVector ci2 = ci.mul(ci);
+        DoubleVector xr = cr.sub(0.25);
+        DoubleVector q = xr.mul(xr).add(ci2);
+        DoubleVector xb = cr.add(1.0);
+
+        return q.mul(q.add(xr)).lt(ci2.mul(0.25)).or(xb.mul(xb).add(ci2).lt(0.0625));
+    }
+}
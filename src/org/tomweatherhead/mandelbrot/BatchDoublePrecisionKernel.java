@@ -0,0 +1,32 @@
+package org.tomweatherhead.mandelbrot;
+
+/**
+ * A DoublePrecisionKernel that hands batches of pixels to a
+ * MandelbrotBatchKernel, which may iterate several of them at once.
+ *
+ * Gathering the batches costs a little, so this kernel is used only when a
+ * batch kernel has been set (e.g. a vector kernel on a desktop JVM); with
+ * one point at a time, DoublePrecisionKernel is faster.
+ */
+class BatchDoublePrecisionKernel extends DoublePrecisionKernel implements BatchEscapeTimeKernel {
+    private final MandelbrotBatchKernel mBatchKernel;
+
+    public BatchDoublePrecisionKernel(double viewLeft, double viewTop, double pixelWidth, double pixelHeight,
+            int maxNumIterations, MandelbrotBatchKernel batchKernel) {
+        super(viewLeft, viewTop, pixelWidth, pixelHeight, maxNumIterations);
+        mBatchKernel = batchKernel;
+    }
+
+    @Override
+    public void iterate(int[] xs, int[] ys, int count, int[] results) {
+        double[] cr = new double[count];
+        double[] ci = new double[count];
+
+        for (int i = 0; i < count; ++i) {
+            cr[i] = mViewLeft + xs[i] * mPixelWidth;
+            ci[i] = mViewTop - ys[i] * mPixelHeight;
+        }
+
+        mBatchKernel.iterate(cr, ci, count, getMaxNumIterations(), results);
+    }
+}
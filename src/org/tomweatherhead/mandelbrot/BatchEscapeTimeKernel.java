@@ -0,0 +1,15 @@
+package org.tomweatherhead.mandelbrot;
+
+/**
+ * An EscapeTimeKernel that can also calculate many pixels in one call, so
+ * that an implementation can iterate several points side by side.
+ */
+interface BatchEscapeTimeKernel extends EscapeTimeKernel {
+
+    /**
+     * Calculates the iteration counts of the pixels (xs[i], ys[i]) for i from
+     * 0 to count - 1 into results[i]. Each result is the same as iterate()
+     * gives for that pixel.
+     */
+    void iterate(int[] xs, int[] ys, int count, int[] results);
+}
@@ -0,0 +1,16 @@
+package org.tomweatherhead.mandelbrot;
+
+/**
+ * An EscapeTimeKernel that can also estimate how far a pixel's point is
+ * from the set, by tracking the derivative of its orbit.
+ */
+interface DistanceEstimateKernel extends EscapeTimeKernel {
+
+    /**
+     * Returns the escape value of the pixel (x, y), the same as iterate(),
+     * and stores in distances[index] the exterior distance estimate of its
+     * point in pixels (see MandelbrotKernel.iterateWithDistance()), or 0 if
+     * the point does not escape.
+     */
+    int iterate(int x, int y, float[] distances, int index);
+}
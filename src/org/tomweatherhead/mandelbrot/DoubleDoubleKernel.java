@@ -0,0 +1,163 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.math.BigDecimal;
+
+/**
+ * The escape-time kernel for zooms just beyond the reach of double
+ * precision. Each number is held as the unevaluated sum of two doubles
+ * (hi + lo, with |lo| <= ulp(hi) / 2), which gives about 106 bits of
+ * precision: enough to resolve the pixels down to a zoom factor of about
+ * 2^90.
+ *
+ * The arithmetic is written out in local variables (Dekker's and Knuth's
+ * error-free transformations), so the loop does not allocate.
+ */
+class DoubleDoubleKernel implements EscapeTimeKernel {
+    /** 2^27 + 1, used to split a double into two halves of 26 bits */
+    private static final double SPLITTER = 134217729.0;
+
+    private final double mViewLeftHi;
+    private final double mViewLeftLo;
+    private final double mViewTopHi;
+    private final double mViewTopLo;
+    private final double mPixelWidth;
+    private final double mPixelHeight;
+    private final int mMaxNumIterations;
+
+    /**
+     * @param viewLeft the real part of the point at pixel column 0
+     * @param viewTop the imaginary part of the point at pixel row 0
+     * @param pixelWidth the width of one pixel in the complex plane
+     * @param pixelHeight the height of one pixel in the complex plane
+     */
+    public DoubleDoubleKernel(BigDecimal viewLeft, BigDecimal viewTop, double pixelWidth, double pixelHeight,
+            int maxNumIterations) {
+        mViewLeftHi = viewLeft.doubleValue();
+        mViewLeftLo = viewLeft.subtract(new BigDecimal(mViewLeftHi)).doubleValue();
+        mViewTopHi = viewTop.doubleValue();
+        mViewTopLo = viewTop.subtract(new BigDecimal(mViewTopHi)).doubleValue();
+        mPixelWidth = pixelWidth;
+        mPixelHeight = pixelHeight;
+        mMaxNumIterations = maxNumIterations;
+    }
+
+    @Override
+    public int getMaxNumIterations() {
+        return mMaxNumIterations;
+    }
+
+    @Override
+    public int iterate(int x, int y) {
+        double s, e, t;
+
+        // cr = viewLeft + x * pixelWidth
+        double offset = x * mPixelWidth;
+
+        s = mViewLeftHi + offset;
+        t = s - mViewLeftHi;
+        e = (mViewLeftHi - (s - t)) + (offset - t) + mViewLeftLo;
+        final double crHi = s + e;
+        final double crLo = e - (crHi - s);
+
+        // ci = viewTop - y * pixelHeight
+        offset = -y * mPixelHeight;
+        s = mViewTopHi + offset;
+        t = s - mViewTopHi;
+        e = (mViewTopHi - (s - t)) + (offset - t) + mViewTopLo;
+        final double ciHi = s + e;
+        final double ciLo = e - (ciHi - s);
+
+        if (MandelbrotKernel.isInMainCardioidOrPeriod2Bulb(crHi, ciHi)) {
+            return MandelbrotKernel.notEscaped(mMaxNumIterations, 0);
+        }
+
+        double zrHi = crHi;
+        double zrLo = crLo;
+        double ziHi = ciHi;
+        double ziLo = ciLo;
+        double savedZrHi = zrHi;
+        double savedZrLo = zrLo;
+        double savedZiHi = ziHi;
+        double savedZiLo = ziLo;
+        int periodCheckInterval = MandelbrotKernel.INITIAL_PERIOD_CHECK_INTERVAL;
+        int periodCheckCountdown = periodCheckInterval;
+        int i = 0;
+
+        for (; i < mMaxNumIterations; ++i)
+        {
+            // Split zr and zi into 26-bit halves for the products.
+            t = SPLITTER * zrHi;
+            double zrA = t - (t - zrHi);
+            double zrB = zrHi - zrA;
+
+            t = SPLITTER * ziHi;
+            double ziA = t - (t - ziHi);
+            double ziB = ziHi - ziA;
+
+            // zr2 = zr * zr
+            double p = zrHi * zrHi;
+
+            e = ((zrA * zrA - p) + 2.0 * zrA * zrB) + zrB * zrB;
+            e += 2.0 * zrHi * zrLo;
+            double zr2Hi = p + e;
+            double zr2Lo = e - (zr2Hi - p);
+
+            // zi2 = zi * zi
+            p = ziHi * ziHi;
+            e = ((ziA * ziA - p) + 2.0 * ziA * ziB) + ziB * ziB;
+            e += 2.0 * ziHi * ziLo;
+            double zi2Hi = p + e;
+            double zi2Lo = e - (zi2Hi - p);
+
+            if (zr2Hi + zi2Hi >= 4.0)
+            {
+                // Once z has escaped, double precision is plenty for the fraction.
+                return MandelbrotKernel.escapeValue(i, zrHi, ziHi, crHi, ciHi);
+            }
+
+            // zri = zr * zi
+            p = zrHi * ziHi;
+            e = ((zrA * ziA - p) + zrA * ziB + zrB * ziA) + zrB * ziB;
+            e += zrHi * ziLo + zrLo * ziHi;
+            double zriHi = p + e;
+            double zriLo = e - (zriHi - p);
+
+            // zr = zr2 - zi2 + cr
+            s = zr2Hi - zi2Hi;
+            t = s - zr2Hi;
+            e = (zr2Hi - (s - t)) + (-zi2Hi - t) + zr2Lo - zi2Lo;
+            double dHi = s + e;
+            double dLo = e - (dHi - s);
+
+            s = dHi + crHi;
+            t = s - dHi;
+            e = (dHi - (s - t)) + (crHi - t) + dLo + crLo;
+            zrHi = s + e;
+            zrLo = e - (zrHi - s);
+
+            // zi = 2 * zr * zi + ci
+            s = 2.0 * zriHi + ciHi;
+            t = s - 2.0 * zriHi;
+            e = (2.0 * zriHi - (s - t)) + (ciHi - t) + 2.0 * zriLo + ciLo;
+            ziHi = s + e;
+            ziLo = e - (ziHi - s);
+
+            if (zrHi == savedZrHi && zrLo == savedZrLo && ziHi == savedZiHi && ziLo == savedZiLo)
+            {
+                return MandelbrotKernel.notEscaped(mMaxNumIterations, i + 1);
+            }
+
+            if (--periodCheckCountdown == 0)
+            {
+                savedZrHi = zrHi;
+                savedZrLo = zrLo;
+                savedZiHi = ziHi;
+                savedZiLo = ziLo;
+                periodCheckInterval *= 2;
+                periodCheckCountdown = periodCheckInterval;
+            }
+        }
+
+        return MandelbrotKernel.notEscaped(mMaxNumIterations, mMaxNumIterations);
+    }
+}
@@ -0,0 +1,46 @@
+package org.tomweatherhead.mandelbrot;
+
+/**
+ * The escape-time kernel for views whose pixels can be told apart in double
+ * precision, i.e. down to a zoom factor of about 2^50.
+ */
+class DoublePrecisionKernel implements DistanceEstimateKernel {
+    /* The view, for subclasses that calculate the points themselves */
+    final double mViewLeft;
+    final double mViewTop;
+    final double mPixelWidth;
+    final double mPixelHeight;
+    private final int mMaxNumIterations;
+
+    /**
+     * @param viewLeft the real part of the point at pixel column 0
+     * @param viewTop the imaginary part of the point at pixel row 0
+     * @param pixelWidth the width of one pixel in the complex plane
+     * @param pixelHeight the height of one pixel in the complex plane
+     */
+    public DoublePrecisionKernel(double viewLeft, double viewTop, double pixelWidth, double pixelHeight,
+            int maxNumIterations) {
+        mViewLeft = viewLeft;
+        mViewTop = viewTop;
+        mPixelWidth = pixelWidth;
+        mPixelHeight = pixelHeight;
+        mMaxNumIterations = maxNumIterations;
+    }
+
+    @Override
+    public int getMaxNumIterations() {
+        return mMaxNumIterations;
+    }
+
+    @Override
+    public int iterate(int x, int y) {
+        return MandelbrotKernel.iterate(mViewLeft + x * mPixelWidth, mViewTop - y * mPixelHeight,
+            mMaxNumIterations);
+    }
+
+    @Override
+    public int iterate(int x, int y, float[] distances, int index) {
+        return MandelbrotKernel.iterateWithDistance(mViewLeft + x * mPixelWidth, mViewTop - y * mPixelHeight,
+            mMaxNumIterations, mPixelWidth, distances, index);
+    }
+}
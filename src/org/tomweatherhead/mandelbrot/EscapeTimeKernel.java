@@ -0,0 +1,22 @@
+package org.tomweatherhead.mandelbrot;
+
+/**
+ * Calculates the iteration count of each pixel of one view.
+ *
+ * An implementation knows where the view lies in the complex plane and
+ * which arithmetic is precise enough at its zoom level. It must be safe to
+ * call iterate() from several threads at once.
+ */
+interface EscapeTimeKernel {
+
+    /** Returns the iteration limit. */
+    int getMaxNumIterations();
+
+    /**
+     * Returns the escape value of the point at pixel (x, y): the number of
+     * iterations before it escapes, with the fraction of an iteration in the
+     * low bits (see MandelbrotKernel.escapeValue()), or
+     * MandelbrotKernel.insideValue(getMaxNumIterations()) if it does not.
+     */
+    int iterate(int x, int y);
+}
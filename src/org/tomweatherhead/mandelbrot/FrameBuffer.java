@@ -0,0 +1,446 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * The pixels of the image being rendered, together with the exact iteration
+ * count of every pixel that has been calculated so far.
+ *
+ * A progressive pass fills whole squares with the colour of one sample, so
+ * most pixels show an approximation until the last pass. The iteration
+ * buffer records which pixels are exact: it holds UNKNOWN for every pixel
+ * that has not been calculated itself. Fills never paint over an exact
+ * pixel, so pixels carried over from the previous view stay visible from
+ * the first pass onwards.
+ *
+ * This class has no Android dependencies.
+ */
+class FrameBuffer {
+    /** The iteration buffer value of a pixel that has not been calculated. */
+    static final int UNKNOWN = -1;
+
+    /** The distance buffer value of a pixel whose distance estimate is not known. */
+    static final float UNKNOWN_DISTANCE = Float.NaN;
+
+    /**
+     * How far a mapped pixel position may be from a whole number and still
+     * count as lying on a pixel of the previous view.
+     */
+    private static final double ALIGNMENT_TOLERANCE = 1.0e-3;
+
+    final int width;
+    final int height;
+
+    /** ARGB colours, width x height, row by row */
+    final int[] pixels;
+
+    /** Escape values (see MandelbrotKernel.escapeValue()), width x height, row by row */
+    int[] iterations;
+
+    /** The previous view's iteration counts, while a new view is being seeded */
+    private int[] mSpareIterations;
+
+    /**
+     * The exterior distance estimates of the pixels, in pixels (see
+     * MandelbrotKernel.iterateWithDistance()), width x height, row by row, or
+     * UNKNOWN_DISTANCE; null unless enableDistances() has been called
+     */
+    float[] distances = null;
+    private float[] mSpareDistances = null;
+
+    /** The mapping from this view's columns and rows to the previous view's */
+    private final int[] mColumnMap;
+    private final int[] mRowMap;
+
+    /* The view whose iteration counts are in the buffer */
+    private boolean mHasView = false;
+    private BigDecimal mViewLeft;
+    private BigDecimal mViewTop;
+    private double mPixelWidth;
+    private double mPixelHeight;
+    private int mMaxNumIterations;
+
+    public FrameBuffer(int width, int height) {
+        this(width, height, null);
+    }
+
+    /**
+     * Makes a framebuffer that takes over the pixel, iteration and distance
+     * arrays of recycled, a framebuffer that is no longer used, if it has
+     * as many pixels, e.g. when the canvas turns between portrait and
+     * landscape; so a resize allocates nothing big, and the old arrays and
+     * the new are never held at once. Nothing is kept of recycled's view.
+     *
+     * @param recycled the framebuffer being replaced, or null
+     */
+    public FrameBuffer(int width, int height, FrameBuffer recycled) {
+        this.width = width;
+        this.height = height;
+
+        if (recycled != null && recycled.pixels.length == width * height) {
+            pixels = recycled.pixels;
+            iterations = recycled.iterations;
+            mSpareIterations = recycled.mSpareIterations;
+            distances = recycled.distances;
+            mSpareDistances = recycled.mSpareDistances;
+        } else {
+            pixels = new int[width * height];
+            iterations = new int[width * height];
+            mSpareIterations = new int[width * height];
+        }
+
+        mColumnMap = new int[width];
+        mRowMap = new int[height];
+        clearIterations();
+    }
+
+    /** Marks every pixel as not yet calculated. */
+    public void clearIterations() {
+        Arrays.fill(iterations, UNKNOWN);
+
+        if (distances != null) {
+            Arrays.fill(distances, UNKNOWN_DISTANCE);
+        }
+    }
+
+    /**
+     * Adds or drops the distance buffer. The distances of the pixels that
+     * are already known are not known, and neither are those of pixels
+     * calculated without them.
+     */
+    public void enableDistances(boolean enable) {
+
+        if (!enable) {
+            distances = null;
+            mSpareDistances = null;
+        } else if (distances == null) {
+            distances = new float[width * height];
+            mSpareDistances = new float[width * height];
+            Arrays.fill(distances, UNKNOWN_DISTANCE);
+        }
+    }
+
+    /** Sets the colour of pixel i from its escape value and, if it is known, its distance estimate. */
+    public void paint(int i, Palette palette) {
+        pixels[i] = palette.colourOf(iterations[i], distances != null ? distances[i] : UNKNOWN_DISTANCE);
+    }
+
+    /**
+     * Paints every pixel again from the escape values alone, e.g. after the
+     * palette's colours have changed; nothing is calculated. The pixels that
+     * have not been calculated are painted as the progressive passes' fills
+     * left them: with the colour of the sample at the top left of their
+     * square, which is fineWidth pixels wide in the rows above fineRows, and
+     * coarseWidth pixels wide in the rows below.
+     */
+    public void repaint(Palette palette, int fineRows, int fineWidth, int coarseWidth) {
+
+        for (int i = 0; i < pixels.length; ++i) {
+
+            if (iterations[i] != UNKNOWN) {
+                paint(i, palette);
+            }
+        }
+
+        for (int y = 0; y < height; ++y) {
+            int squareWidth = y < fineRows ? fineWidth : coarseWidth;
+            int rowStart = y * width;
+            int sampleRowStart = (y - y % squareWidth) * width;
+
+            for (int x = 0; x < width; ++x) {
+
+                if (iterations[rowStart + x] == UNKNOWN) {
+                    pixels[rowStart + x] = pixels[sampleRowStart + x - x % squareWidth];
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts rendering a new view. Every pixel of the new view that lies
+     * exactly on a pixel of the previous view keeps that pixel's iteration
+     * count; all other pixels are marked as not yet calculated. If the
+     * iteration limit has changed, the kept pixels that did not escape within
+     * the lower of the two limits are adjusted or recalculated.
+     *
+     * When the new view is the previous one zoomed in by 2x on the previous
+     * pixel grid, this keeps a quarter of the pixels. When it is the previous
+     * one zoomed out by 2x, it keeps every pixel of the centre quarter. The
+     * kept pixels are painted straight away.
+     *
+     * @param viewLeft the real part of the point at pixel column 0
+     * @param viewTop the imaginary part of the point at pixel row 0
+     * @param pixelWidth the width of one pixel in the complex plane
+     * @param pixelHeight the height of one pixel in the complex plane
+     * @param palette the new view's palette, which gives its iteration limit
+     * @return the number of pixels whose iteration counts were kept
+     */
+    public int startView(BigDecimal viewLeft, BigDecimal viewTop, double pixelWidth, double pixelHeight,
+            Palette palette) {
+        int maxNumIterations = palette.getMaxNumIterations();
+        int numKept = 0;
+
+        if (mHasView) {
+            // The corners are exact, so their difference is accurate even at deep zooms.
+            numKept = retainAligned(viewLeft.subtract(mViewLeft).doubleValue() / mPixelWidth,
+                mViewTop.subtract(viewTop).doubleValue() / mPixelHeight,
+                pixelWidth / mPixelWidth, pixelHeight / mPixelHeight);
+
+            if (numKept > 0 && maxNumIterations != mMaxNumIterations) {
+                numKept = changeIterationLimit(mMaxNumIterations, maxNumIterations);
+            }
+        } else {
+            clearIterations();
+        }
+
+        mHasView = true;
+        mViewLeft = viewLeft;
+        mViewTop = viewTop;
+        mPixelWidth = pixelWidth;
+        mPixelHeight = pixelHeight;
+        mMaxNumIterations = maxNumIterations;
+
+        if (numKept > 0) {
+
+            for (int i = 0; i < iterations.length; ++i) {
+
+                if (iterations[i] != UNKNOWN) {
+                    paint(i, palette);
+                }
+            }
+        }
+
+        return numKept;
+    }
+
+    /**
+     * Forgets the previous view, so that the next view is calculated from
+     * scratch even if it lines up with the previous one.
+     */
+    public void discardView() {
+        mHasView = false;
+    }
+
+    /**
+     * Replaces the iteration buffer with the previous view's counts moved to
+     * their positions in the new view.
+     *
+     * @param columnOffset the previous view's column at the new column 0
+     * @param rowOffset the previous view's row at the new row 0
+     * @param columnScale the new pixel width divided by the previous one
+     * @param rowScale the new pixel height divided by the previous one
+     */
+    private int retainAligned(double columnOffset, double rowOffset, double columnScale, double rowScale) {
+        int numColumns = mapAligned(columnOffset, columnScale, width, mColumnMap);
+        int numRows = mapAligned(rowOffset, rowScale, height, mRowMap);
+        int[] previous = iterations;
+        float[] previousDistances = distances;
+
+        iterations = mSpareIterations;
+        mSpareIterations = previous;
+
+        if (distances != null) {
+            distances = mSpareDistances;
+            mSpareDistances = previousDistances;
+        }
+
+        clearIterations();
+
+        if (numColumns == 0 || numRows == 0) {
+            return 0;
+        }
+
+        for (int y = 0; y < height; ++y) {
+            int previousRow = mRowMap[y];
+
+            if (previousRow < 0) {
+                continue;
+            }
+
+            int rowStart = y * width;
+            int previousRowStart = previousRow * width;
+
+            for (int x = 0; x < width; ++x) {
+                int previousColumn = mColumnMap[x];
+
+                if (previousColumn >= 0) {
+                    iterations[rowStart + x] = previous[previousRowStart + previousColumn];
+
+                    if (distances != null) {
+                        // A distance in pixels grows as the pixels shrink.
+                        distances[rowStart + x] = (float)(previousDistances[previousRowStart + previousColumn]
+                                / columnScale);
+                    }
+                }
+            }
+        }
+
+        return numColumns * numRows;
+    }
+
+    /**
+     * Brings the kept escape values up to date with a new iteration limit. A
+     * pixel that escaped within both limits has the same value under either.
+     * One that did not escape within the old limit may escape within a higher
+     * new one, so it is recalculated; one that escaped only after the new,
+     * lower limit now counts as not escaping.
+     *
+     * @return the number of pixels still known
+     */
+    private int changeIterationLimit(int oldMaxNumIterations, int newMaxNumIterations) {
+        int oldInsideValue = MandelbrotKernel.insideValue(oldMaxNumIterations);
+        int newInsideValue = MandelbrotKernel.insideValue(newMaxNumIterations);
+        int numKnown = 0;
+
+        for (int i = 0; i < iterations.length; ++i) {
+            int value = iterations[i];
+
+            if (value == UNKNOWN) {
+                continue;
+            }
+
+            if (value >= oldInsideValue) {
+                value = newMaxNumIterations > oldMaxNumIterations ? UNKNOWN : newInsideValue;
+
+                if (value == UNKNOWN && distances != null) {
+                    distances[i] = UNKNOWN_DISTANCE;
+                }
+            } else if (value >= newInsideValue) {
+                value = newInsideValue;
+            }
+
+            iterations[i] = value;
+
+            if (value != UNKNOWN) {
+                ++numKnown;
+            }
+        }
+
+        return numKnown;
+    }
+
+    /**
+     * Fills map[i] with the previous view's index at new index i, or -1 if
+     * new index i does not lie on a previous pixel inside the buffer.
+     *
+     * @return the number of indices that lie on a previous pixel
+     */
+    private static int mapAligned(double offset, double scale, int size, int[] map) {
+        int numAligned = 0;
+
+        for (int i = 0; i < size; ++i) {
+            double position = offset + i * scale;
+            long nearest = Math.round(position);
+
+            if (Math.abs(position - nearest) < ALIGNMENT_TOLERANCE && nearest >= 0 && nearest < size) {
+                map[i] = (int)nearest;
+                ++numAligned;
+            } else {
+                map[i] = -1;
+            }
+        }
+
+        return numAligned;
+    }
+
+    /**
+     * Copies the iteration counts of a square tile into the pixels that have
+     * not been calculated, and paints them. The tile may lie partly outside
+     * the buffer.
+     *
+     * @param tile size x size iteration counts, row by row
+     * @param left the buffer column of the tile's left edge
+     * @param top the buffer row of the tile's top edge
+     */
+    public void copyTileIn(int[] tile, int left, int top, int size, Palette palette) {
+        int firstX = Math.max(left, 0);
+        int lastX = Math.min(left + size, width);
+        int firstY = Math.max(top, 0);
+        int lastY = Math.min(top + size, height);
+
+        for (int y = firstY; y < lastY; ++y) {
+            int rowStart = y * width;
+            int tileRowStart = (y - top) * size - left;
+
+            for (int x = firstX; x < lastX; ++x) {
+                int i = rowStart + x;
+
+                if (iterations[i] == UNKNOWN) {
+                    iterations[i] = tile[tileRowStart + x];
+                    pixels[i] = palette.colourOf(iterations[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the iteration counts of a square tile that lies wholly inside
+     * the buffer.
+     *
+     * @return a new size x size array of iteration counts, or null if any
+     *         pixel of the tile has not been calculated
+     */
+    public int[] copyTileOut(int left, int top, int size) {
+        int[] tile = new int[size * size];
+
+        for (int y = 0; y < size; ++y) {
+            int rowStart = (top + y) * width + left;
+
+            for (int x = 0; x < size; ++x) {
+                int count = iterations[rowStart + x];
+
+                if (count == UNKNOWN) {
+                    return null;
+                }
+
+                tile[y * size + x] = count;
+            }
+        }
+
+        return tile;
+    }
+
+    /** Returns the number of pixels in row y that have not been calculated. */
+    public int countUnknown(int y) {
+        int count = 0;
+
+        for (int i = y * width; i < (y + 1) * width; ++i) {
+
+            if (iterations[i] == UNKNOWN) {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Fills the pixels of a square that have not been calculated with one
+     * colour, clipped to the framebuffer's bounds.
+     */
+    public void fillSquare(int left, int top, int squareWidth, int colour) {
+        fillRectangle(left, top, left + squareWidth, top + squareWidth, colour);
+    }
+
+    /**
+     * Fills the pixels in columns left to right - 1 and rows top to
+     * bottom - 1 that have not been calculated with one colour, clipped to
+     * the framebuffer's bounds.
+     */
+    public void fillRectangle(int left, int top, int right, int bottom, int colour) {
+        right = Math.min(right, width);
+        bottom = Math.min(bottom, height);
+
+        for (int y = top; y < bottom; ++y) {
+            int rowStart = y * width;
+
+            for (int i = rowStart + left; i < rowStart + right; ++i) {
+
+                if (iterations[i] == UNKNOWN) {
+                    pixels[i] = colour;
+                }
+            }
+        }
+    }
+}
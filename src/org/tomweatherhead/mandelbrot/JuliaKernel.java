@@ -0,0 +1,51 @@
+package org.tomweatherhead.mandelbrot;
+
+/**
+ * The escape-time kernel for views of the Julia set of a point c, in double
+ * precision, i.e. down to a zoom factor of about 2^50.
+ */
+class JuliaKernel implements DistanceEstimateKernel {
+    private final double mViewLeft;
+    private final double mViewTop;
+    private final double mPixelWidth;
+    private final double mPixelHeight;
+    private final double mCr;
+    private final double mCi;
+    private final int mMaxNumIterations;
+
+    /**
+     * @param viewLeft the real part of the point at pixel column 0
+     * @param viewTop the imaginary part of the point at pixel row 0
+     * @param pixelWidth the width of one pixel in the complex plane
+     * @param pixelHeight the height of one pixel in the complex plane
+     * @param cr the real part of the point c whose Julia set this is
+     * @param ci the imaginary part of c
+     */
+    public JuliaKernel(double viewLeft, double viewTop, double pixelWidth, double pixelHeight,
+            double cr, double ci, int maxNumIterations) {
+        mViewLeft = viewLeft;
+        mViewTop = viewTop;
+        mPixelWidth = pixelWidth;
+        mPixelHeight = pixelHeight;
+        mCr = cr;
+        mCi = ci;
+        mMaxNumIterations = maxNumIterations;
+    }
+
+    @Override
+    public int getMaxNumIterations() {
+        return mMaxNumIterations;
+    }
+
+    @Override
+    public int iterate(int x, int y) {
+        return MandelbrotKernel.iterateJulia(mViewLeft + x * mPixelWidth, mViewTop - y * mPixelHeight,
+            mCr, mCi, mMaxNumIterations);
+    }
+
+    @Override
+    public int iterate(int x, int y, float[] distances, int index) {
+        return MandelbrotKernel.iterateJuliaWithDistance(mViewLeft + x * mPixelWidth, mViewTop - y * mPixelHeight,
+            mCr, mCi, mMaxNumIterations, mPixelWidth, distances, index);
+    }
+}
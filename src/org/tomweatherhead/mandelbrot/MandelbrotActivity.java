@@ -1,12 +1,17 @@
 package org.tomweatherhead.mandelbrot;
 
+import java.io.File;
+
 import android.app.Activity;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewConfiguration;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
 import android.view.ViewTreeObserver.OnGlobalLayoutListener;
@@ -29,6 +34,19 @@ public class MandelbrotActivity extends Activity {
     private static final int MENU_PAUSE = 2;
     private static final int MENU_RESUME = 3;
     private static final int MENU_ZOOM_OUT = 4;
+    private static final int MENU_BOUNDARY_TRACING = 5;
+    private static final int MENU_MORE_ITERATIONS = 6;
+    private static final int MENU_FEWER_ITERATIONS = 7;
+    private static final int MENU_METRICS = 8;
+    private static final int MENU_SAVE_METRICS = 9;
+    private static final int MENU_EXPORT_POSTER = 10;
+    private static final int MENU_MANDELBROT = 11;
+    private static final int MENU_DISTANCE_ESTIMATION = 12;
+    private static final int MENU_DISTANCE_SHADING = 13;
+    private static final int MENU_SAVE_SESSION = 14;
+    private static final int MENU_COLOUR_SCHEME = 15;
+    private static final int MENU_COLOUR_CYCLING = 16;
+    private static final int MENU_16_BIT_COLOUR = 17;
 
     /** A handle to the thread that's actually running the animation. */
     private MandelbrotThread mMandelbrotThread;
@@ -36,6 +54,40 @@ public class MandelbrotActivity extends Activity {
     /** A handle to the View in which the game is running. */
     private MandelbrotView mMandelbrotView;
 
+    /* The touch that is down: where it went down, and whether it has moved or been held for a Julia set */
+    private final Handler mTouchHandler = new Handler();
+    private int mTouchDownX;
+    private int mTouchDownY;
+    private boolean mTouchMoved = false;
+    private boolean mTouchHeld = false;
+
+    /*
+     * A pan or pinch gesture: the transform of the view so far, as a scale
+     * and then a translation, in screen coordinates; and the transform, the
+     * pointers' focus (their centre) and span (their mean distance from the
+     * focus) when the number of pointers last changed, which the transform
+     * is measured from.
+     */
+    private boolean mGesture = false;
+    private float mGestureScale = 1.0f;
+    private float mGestureTranslateX = 0.0f;
+    private float mGestureTranslateY = 0.0f;
+    private float mStartScale;
+    private float mStartTranslateX;
+    private float mStartTranslateY;
+    private float mStartFocusX;
+    private float mStartFocusY;
+    private float mStartSpan;
+
+    /** Run when a touch has been held still for the long-press time: shows the Julia set of the point */
+    private final Runnable mLongPress = new Runnable() {
+        @Override
+        public void run() {
+            mTouchHeld = true;
+            mMandelbrotView.doJuliaTouch(mTouchDownX, mTouchDownY);
+        }
+    };
+
     /**
      * Invoked during init to give the Activity a chance to set up its Menu.
      *
@@ -52,6 +104,19 @@ public class MandelbrotActivity extends Activity {
         menu.add(0, MENU_ZOOM_OUT, 0, R.string.menu_zoom_out);
         menu.add(0, MENU_PAUSE, 0, R.string.menu_pause);
         menu.add(0, MENU_RESUME, 0, R.string.menu_resume);
+        menu.add(0, MENU_BOUNDARY_TRACING, 0, R.string.menu_boundary_tracing);
+        menu.add(0, MENU_DISTANCE_ESTIMATION, 0, R.string.menu_distance_estimation);
+        menu.add(0, MENU_DISTANCE_SHADING, 0, R.string.menu_distance_shading);
+        menu.add(0, MENU_COLOUR_SCHEME, 0, R.string.menu_colour_scheme);
+        menu.add(0, MENU_COLOUR_CYCLING, 0, R.string.menu_colour_cycling);
+        menu.add(0, MENU_16_BIT_COLOUR, 0, R.string.menu_16_bit_colour);
+        menu.add(0, MENU_MORE_ITERATIONS, 0, R.string.menu_more_iterations);
+        menu.add(0, MENU_FEWER_ITERATIONS, 0, R.string.menu_fewer_iterations);
+        menu.add(0, MENU_METRICS, 0, R.string.menu_metrics);
+        menu.add(0, MENU_SAVE_METRICS, 0, R.string.menu_save_metrics);
+        menu.add(0, MENU_SAVE_SESSION, 0, R.string.menu_save_session);
+        menu.add(0, MENU_EXPORT_POSTER, 0, R.string.menu_export_poster);
+        menu.add(0, MENU_MANDELBROT, 0, R.string.menu_mandelbrot);
 
         return true;
     }
@@ -78,6 +143,53 @@ public class MandelbrotActivity extends Activity {
             case MENU_RESUME:
             	mMandelbrotThread.unpause();
                 return true;
+            case MENU_BOUNDARY_TRACING:
+            	mMandelbrotThread.toggleBoundaryTracing();
+                return true;
+            case MENU_DISTANCE_ESTIMATION:
+            	mMandelbrotThread.toggleDistanceEstimation();
+                return true;
+            case MENU_DISTANCE_SHADING:
+            	mMandelbrotThread.toggleDistanceShading();
+                return true;
+            case MENU_COLOUR_SCHEME:
+            	mMandelbrotThread.nextColourScheme();
+                return true;
+            case MENU_COLOUR_CYCLING:
+            	mMandelbrotThread.toggleColourCycling();
+                return true;
+            case MENU_16_BIT_COLOUR:
+            	mMandelbrotThread.toggle16BitColour();
+                return true;
+            case MENU_MORE_ITERATIONS:
+            	mMandelbrotThread.scaleMaxNumIterations(2.0);
+                return true;
+            case MENU_FEWER_ITERATIONS:
+            	mMandelbrotThread.scaleMaxNumIterations(0.5);
+                return true;
+            case MENU_METRICS:
+            	mMandelbrotThread.toggleMetrics();
+                return true;
+            case MENU_SAVE_METRICS:
+            	// The app's external files directory can be read over USB without root.
+            	File directory = getExternalFilesDir(null);
+
+            	mMandelbrotThread.saveMetrics(new File(directory != null ? directory : getFilesDir(), "metrics.json"));
+                return true;
+            case MENU_SAVE_SESSION:
+            	File sessions = getExternalFilesDir(null);
+
+            	mMandelbrotThread.saveSession(new File(sessions != null ? sessions : getFilesDir(), "session.txt"));
+                return true;
+            case MENU_EXPORT_POSTER:
+            	File pictures = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+
+            	mMandelbrotThread.exportPoster(new File(pictures != null ? pictures : getFilesDir(),
+            			"mandelbrot-" + System.currentTimeMillis() + ".png"));
+                return true;
+            case MENU_MANDELBROT:
+            	mMandelbrotThread.showMandelbrot();
+                return true;
         }
 
         return false;
@@ -100,6 +212,9 @@ public class MandelbrotActivity extends Activity {
         mMandelbrotView = (MandelbrotView) findViewById(R.id.mandelbrot);
         mMandelbrotThread = mMandelbrotView.getThread();
 
+        // Keep rendered tiles across restarts; the system may delete them to free space.
+        mMandelbrotThread.openTileStore(new File(getCacheDir(), "tiles"));
+
         final ViewGroup mainLayout = (ViewGroup) findViewById (R.id.main_layout);
         
         mMandelbrotView.setMainLayout(mainLayout);
@@ -165,6 +280,26 @@ public class MandelbrotActivity extends Activity {
         mMandelbrotView.getThread().pause(); // pause game when Activity pauses
     }
 
+    /**
+     * Invoked when the system would like the process to give memory back.
+     *
+     * @param level how urgently; one of the TRIM_MEMORY_* constants
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMandelbrotThread.trimMemory(level);
+    }
+
+    /**
+     * Invoked when the whole system is running low on memory.
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mMandelbrotThread.trimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
     /**
      * Notification that something is about to happen, to give the Activity a
      * chance to save state.
@@ -179,18 +314,156 @@ public class MandelbrotActivity extends Activity {
         Log.w(this.getClass().getName(), "SIS called");
     }
 
+    /**
+     * A tap zooms in when it is released. A touch held still for the
+     * long-press time shows the Julia set of the point under it, and as it
+     * then moves, the Julia sets of the points that it moves over. A touch
+     * that moves pans the view, and two pinch it; while the fingers are down
+     * the bitmap is moved and scaled with them, and when they are lifted the
+     * view that it shows is rendered.
+     */
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-    	
-    	if (event.getAction() == MotionEvent.ACTION_DOWN) {
-            int x = (int)event.getX();
-            int y = (int)event.getY();
-
-            mMandelbrotView.doTouchDown(x, y);
-    	}
-    	
+        int x = (int)event.getX();
+        int y = (int)event.getY();
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                mTouchDownX = x;
+                mTouchDownY = y;
+                mTouchMoved = false;
+                mTouchHeld = false;
+                mGesture = false;
+                mGestureScale = 1.0f;
+                mGestureTranslateX = 0.0f;
+                mGestureTranslateY = 0.0f;
+                startGestureStep(event, -1);
+                mTouchHandler.postDelayed(mLongPress, ViewConfiguration.getLongPressTimeout());
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+
+                if (!mTouchHeld) {
+                    mTouchHandler.removeCallbacks(mLongPress);
+                    mTouchMoved = true;
+                    mGesture = true;
+                    updateGesture(event, event.getActionIndex());	// Up to the new pointer
+                    startGestureStep(event, -1);
+                }
+
+                break;
+            case MotionEvent.ACTION_MOVE:
+
+                if (mTouchHeld) {
+                    mMandelbrotView.doJuliaTouch(x, y);
+                    break;
+                }
+
+                if (!mGesture && Math.abs(x - mTouchDownX) + Math.abs(y - mTouchDownY)
+                        > ViewConfiguration.get(this).getScaledTouchSlop()) {
+                    mTouchMoved = true;
+                    mGesture = true;
+                    mTouchHandler.removeCallbacks(mLongPress);
+                }
+
+                if (mGesture) {
+                    updateGesture(event, -1);
+                    mMandelbrotView.doGesture(mGestureScale, mGestureTranslateX, mGestureTranslateY);
+                }
+
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+
+                if (mGesture) {
+                    // Carry on from the pointers that are left.
+                    updateGesture(event, -1);
+                    startGestureStep(event, event.getActionIndex());
+                }
+
+                break;
+            case MotionEvent.ACTION_UP:
+                mTouchHandler.removeCallbacks(mLongPress);
+
+                if (mGesture) {
+                    updateGesture(event, -1);
+                    mMandelbrotView.endGesture(mGestureScale, mGestureTranslateX, mGestureTranslateY);
+                    mGesture = false;
+                } else if (!mTouchHeld && !mTouchMoved) {
+                    mMandelbrotView.doTouchDown(mTouchDownX, mTouchDownY);
+                }
+
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                mTouchHandler.removeCallbacks(mLongPress);
+
+                if (mGesture) {
+                    mMandelbrotView.endGesture(1.0f, 0.0f, 0.0f);		// Put the view back
+                    mGesture = false;
+                }
+
+                break;
+        }
+
         // Let's try not stopping the propagation of this event.
         return false;
     }
 
+    /**
+     * Measures the rest of the gesture from the current transform and the
+     * focus and span of the event's pointers, leaving out the pointer at
+     * skipIndex (-1 for none), e.g. one that is being lifted.
+     */
+    private void startGestureStep(MotionEvent event, int skipIndex) {
+        float[] focusAndSpan = getFocusAndSpan(event, skipIndex);
+
+        mStartScale = mGestureScale;
+        mStartTranslateX = mGestureTranslateX;
+        mStartTranslateY = mGestureTranslateY;
+        mStartFocusX = focusAndSpan[0];
+        mStartFocusY = focusAndSpan[1];
+        mStartSpan = focusAndSpan[2];
+    }
+
+    /**
+     * Updates the transform: the start of the step, then a scale by the
+     * ratio of the pointers' span to the start span around the start focus,
+     * and a translation from the start focus to the current focus.
+     */
+    private void updateGesture(MotionEvent event, int skipIndex) {
+        float[] focusAndSpan = getFocusAndSpan(event, skipIndex);
+        float scale = mStartSpan > 0.0f && focusAndSpan[2] > 0.0f ? focusAndSpan[2] / mStartSpan : 1.0f;
+
+        mGestureScale = mStartScale * scale;
+        mGestureTranslateX = scale * (mStartTranslateX - mStartFocusX) + focusAndSpan[0];
+        mGestureTranslateY = scale * (mStartTranslateY - mStartFocusY) + focusAndSpan[1];
+    }
+
+    /** Returns the focus x, focus y and span of the event's pointers, leaving out the one at skipIndex. */
+    private static float[] getFocusAndSpan(MotionEvent event, int skipIndex) {
+        int count = 0;
+        float sumX = 0.0f;
+        float sumY = 0.0f;
+
+        for (int i = 0; i < event.getPointerCount(); ++i) {
+
+            if (i != skipIndex) {
+                sumX += event.getX(i);
+                sumY += event.getY(i);
+                ++count;
+            }
+        }
+
+        float focusX = sumX / count;
+        float focusY = sumY / count;
+        float sumDistances = 0.0f;
+
+        for (int i = 0; i < event.getPointerCount(); ++i) {
+
+            if (i != skipIndex) {
+                sumDistances += (float)Math.hypot(event.getX(i) - focusX, event.getY(i) - focusY);
+            }
+        }
+
+        return new float[] { focusX, focusY, count > 1 ? sumDistances / count : 0.0f };
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,21 @@
+package org.tomweatherhead.mandelbrot;
+
+/**
+ * The escape-time calculation for a batch of points in double precision.
+ *
+ * ScalarBatchKernel calculates the points one at a time, on any JVM. A
+ * desktop build may plug in a kernel that iterates several points at once
+ * with SIMD instructions (see jvm/), provided it gives exactly the same
+ * counts as MandelbrotKernel.iterate(). See
+ * MandelbrotRenderer.setBatchKernel().
+ *
+ * Implementations must be safe to call from several threads at once.
+ */
+interface MandelbrotBatchKernel {
+
+    /**
+     * Calculates MandelbrotKernel.iterate(cr[i], ci[i], maxNumIterations)
+     * into results[i], for i from 0 to count - 1.
+     */
+    void iterate(double[] cr, double[] ci, int count, int maxNumIterations, int[] results);
+}
@@ -0,0 +1,400 @@
+package org.tomweatherhead.mandelbrot;
+
+/**
+ * The escape-time calculation for a single point c = cr + ci * i, and the
+ * escape values that kernels return.
+ *
+ * The kernels count the points they iterate and the iterations they run,
+ * for the render metrics, in an IterationCount of the calling thread.
+ *
+ * This class has no Android dependencies. Its only state is the calling
+ * thread's count, so it may be called from any number of threads at once.
+ */
+final class MandelbrotKernel {
+    /** The number of iterations before the first periodicity check point is saved. */
+    static final int INITIAL_PERIOD_CHECK_INTERVAL = 8;
+
+    /** The number of low bits of an escape value that hold the fraction of an iteration */
+    static final int FRACTION_BITS = 4;
+
+    /** The number of iterations past the escape radius that measure how fast an orbit escapes */
+    private static final int EXTRA_ITERATIONS = 3;
+
+    private static final double LN2 = Math.log(2.0);
+
+    /** The points iterated and the iterations run on one thread, since the thread started */
+    static final class IterationCount {
+        long points = 0;
+        long iterations = 0;
+    }
+
+    private static final ThreadLocal<IterationCount> ITERATION_COUNTS = new ThreadLocal<IterationCount>() {
+        @Override
+        protected IterationCount initialValue() {
+            return new IterationCount();
+        }
+    };
+
+    private MandelbrotKernel() {
+    }
+
+    /** Returns the calling thread's count of the points it has iterated and the iterations it has run. */
+    static IterationCount getIterationCount() {
+        return ITERATION_COUNTS.get();
+    }
+
+    /**
+     * Adds iterations to the calling thread's count without a point, e.g. a
+     * negative number for iterations that a point's escape value implies but
+     * that were not run.
+     */
+    static void countIterations(long iterations) {
+        ITERATION_COUNTS.get().iterations += iterations;
+    }
+
+    /**
+     * Counts a point that did not escape after iterations iterations (0 if
+     * it was recognised as inside without iterating), and returns its escape
+     * value, insideValue(maxNumIterations).
+     */
+    static int notEscaped(int maxNumIterations, int iterations) {
+        IterationCount count = ITERATION_COUNTS.get();
+
+        ++count.points;
+        count.iterations += iterations;
+        return insideValue(maxNumIterations);
+    }
+
+    /**
+     * Iterates z -> z^2 + c, starting from z = c, until |z| >= 2 or the
+     * iteration limit is reached.
+     *
+     * Two shortcuts return maxNumIterations early for points in the set:
+     * points in the main cardioid or the period-2 bulb are recognised
+     * without iterating, and the iteration stops as soon as z repeats
+     * exactly. An orbit that repeats has already passed the escape test at
+     * every point of its cycle, so it would never escape; the result is the
+     * same as running the loop to the limit.
+     *
+     * @return the escape value of the point (see escapeValue()), or
+     *         insideValue(maxNumIterations) if the point did not escape
+     */
+    static int iterate(double cr, double ci, int maxNumIterations) {
+
+        if (isInMainCardioidOrPeriod2Bulb(cr, ci)) {
+            return notEscaped(maxNumIterations, 0);
+        }
+
+        double zr = cr;
+        double zi = ci;
+        double savedZr = zr;
+        double savedZi = zi;
+        int periodCheckInterval = INITIAL_PERIOD_CHECK_INTERVAL;
+        int periodCheckCountdown = periodCheckInterval;
+        int i = 0;
+
+        for (; i < maxNumIterations; ++i)
+        {
+            double zr2 = zr * zr;
+            double zi2 = zi * zi;
+
+            if (zr2 + zi2 >= 4.0)
+            {
+                return escapeValue(i, zr, zi, cr, ci);
+            }
+
+            double tempzr = zr2 - zi2 + cr;
+
+            zi = 2.0 * zr * zi + ci;
+            zr = tempzr;
+
+            if (zr == savedZr && zi == savedZi)
+            {
+                return notEscaped(maxNumIterations, i + 1);
+            }
+
+            // Brent's method: move the check point to the current z at
+            // doubling intervals, so that cycles of any length are caught.
+            if (--periodCheckCountdown == 0)
+            {
+                savedZr = zr;
+                savedZi = zi;
+                periodCheckInterval *= 2;
+                periodCheckCountdown = periodCheckInterval;
+            }
+        }
+
+        return notEscaped(maxNumIterations, maxNumIterations);
+    }
+
+    /**
+     * Iterates z -> z^2 + c for a fixed c, starting from z = zr + zi * i,
+     * until |z| >= 2 or the iteration limit is reached: the escape time of
+     * the point z of the Julia set of c. The iteration stops as soon as z
+     * repeats exactly, as in iterate(); there is no shortcut like the
+     * cardioid test, since the shape of the set depends on c.
+     *
+     * @return the escape value of the point (see escapeValue()), or
+     *         insideValue(maxNumIterations) if the point did not escape
+     */
+    static int iterateJulia(double zr, double zi, double cr, double ci, int maxNumIterations) {
+        double savedZr = zr;
+        double savedZi = zi;
+        int periodCheckInterval = INITIAL_PERIOD_CHECK_INTERVAL;
+        int periodCheckCountdown = periodCheckInterval;
+
+        for (int i = 0; i < maxNumIterations; ++i)
+        {
+            double zr2 = zr * zr;
+            double zi2 = zi * zi;
+
+            if (zr2 + zi2 >= 4.0)
+            {
+                return escapeValue(i, zr, zi, cr, ci);
+            }
+
+            double tempzr = zr2 - zi2 + cr;
+
+            zi = 2.0 * zr * zi + ci;
+            zr = tempzr;
+
+            if (zr == savedZr && zi == savedZi)
+            {
+                return notEscaped(maxNumIterations, i + 1);
+            }
+
+            if (--periodCheckCountdown == 0)
+            {
+                savedZr = zr;
+                savedZi = zi;
+                periodCheckInterval *= 2;
+                periodCheckCountdown = periodCheckInterval;
+            }
+        }
+
+        return notEscaped(maxNumIterations, maxNumIterations);
+    }
+
+    /**
+     * Iterates c as iterate() does, and also the derivative dz/dc of the
+     * orbit, and stores in distances[index] the exterior distance estimate
+     * of c (see distanceEstimate()) in units of pixelSize, or 0 if c does not
+     * escape. Tracking the derivative costs about half as much again.
+     *
+     * @return the same escape value as iterate()
+     */
+    static int iterateWithDistance(double cr, double ci, int maxNumIterations, double pixelSize,
+            float[] distances, int index) {
+        distances[index] = 0.0f;
+
+        if (isInMainCardioidOrPeriod2Bulb(cr, ci)) {
+            return notEscaped(maxNumIterations, 0);
+        }
+
+        double zr = cr;
+        double zi = ci;
+        double dzr = 1.0;
+        double dzi = 0.0;
+        double savedZr = zr;
+        double savedZi = zi;
+        int periodCheckInterval = INITIAL_PERIOD_CHECK_INTERVAL;
+        int periodCheckCountdown = periodCheckInterval;
+
+        for (int i = 0; i < maxNumIterations; ++i)
+        {
+            double zr2 = zr * zr;
+            double zi2 = zi * zi;
+
+            if (zr2 + zi2 >= 4.0)
+            {
+                distances[index] = (float)(distanceEstimate(zr, zi, dzr, dzi, cr, ci, 1.0) / pixelSize);
+                return escapeValue(i, zr, zi, cr, ci);
+            }
+
+            // dz/dc -> 2 * z * dz/dc + 1
+            double tempdzr = 2.0 * (zr * dzr - zi * dzi) + 1.0;
+
+            dzi = 2.0 * (zr * dzi + zi * dzr);
+            dzr = tempdzr;
+
+            double tempzr = zr2 - zi2 + cr;
+
+            zi = 2.0 * zr * zi + ci;
+            zr = tempzr;
+
+            if (zr == savedZr && zi == savedZi)
+            {
+                return notEscaped(maxNumIterations, i + 1);
+            }
+
+            if (--periodCheckCountdown == 0)
+            {
+                savedZr = zr;
+                savedZi = zi;
+                periodCheckInterval *= 2;
+                periodCheckCountdown = periodCheckInterval;
+            }
+        }
+
+        return notEscaped(maxNumIterations, maxNumIterations);
+    }
+
+    /**
+     * Iterates the point z of the Julia set of c as iterateJulia() does, and
+     * also the derivative dz/dz0 of the orbit, and stores the exterior
+     * distance estimate of the point as iterateWithDistance() does.
+     *
+     * @return the same escape value as iterateJulia()
+     */
+    static int iterateJuliaWithDistance(double zr, double zi, double cr, double ci, int maxNumIterations,
+            double pixelSize, float[] distances, int index) {
+        double dzr = 1.0;
+        double dzi = 0.0;
+        double savedZr = zr;
+        double savedZi = zi;
+        int periodCheckInterval = INITIAL_PERIOD_CHECK_INTERVAL;
+        int periodCheckCountdown = periodCheckInterval;
+
+        distances[index] = 0.0f;
+
+        for (int i = 0; i < maxNumIterations; ++i)
+        {
+            double zr2 = zr * zr;
+            double zi2 = zi * zi;
+
+            if (zr2 + zi2 >= 4.0)
+            {
+                distances[index] = (float)(distanceEstimate(zr, zi, dzr, dzi, cr, ci, 0.0) / pixelSize);
+                return escapeValue(i, zr, zi, cr, ci);
+            }
+
+            // dz/dz0 -> 2 * z * dz/dz0
+            double tempdzr = 2.0 * (zr * dzr - zi * dzi);
+
+            dzi = 2.0 * (zr * dzi + zi * dzr);
+            dzr = tempdzr;
+
+            double tempzr = zr2 - zi2 + cr;
+
+            zi = 2.0 * zr * zi + ci;
+            zr = tempzr;
+
+            if (zr == savedZr && zi == savedZi)
+            {
+                return notEscaped(maxNumIterations, i + 1);
+            }
+
+            if (--periodCheckCountdown == 0)
+            {
+                savedZr = zr;
+                savedZi = zi;
+                periodCheckInterval *= 2;
+                periodCheckCountdown = periodCheckInterval;
+            }
+        }
+
+        return notEscaped(maxNumIterations, maxNumIterations);
+    }
+
+    /**
+     * Returns the exterior distance estimate 2 |z| ln|z| / |dz| of a point
+     * whose orbit has just escaped, after a few more iterations so that |z|
+     * is large enough for the estimate to be accurate. The distance from
+     * the point to the set is between a quarter of the estimate and the
+     * estimate itself, so a disc of a quarter of its radius holds no point
+     * of the set.
+     *
+     * @param zr the real part of the first point of the orbit with |z| >= 2
+     * @param zi the imaginary part of that point
+     * @param dzr the real part of the orbit's derivative at that point
+     * @param dzi the imaginary part of the derivative
+     * @param dc 1 for the Mandelbrot set, where the derivative is by c; 0 for a Julia set
+     */
+    private static double distanceEstimate(double zr, double zi, double dzr, double dzi,
+            double cr, double ci, double dc) {
+
+        for (int k = 0; k < EXTRA_ITERATIONS; ++k) {
+            double tempdzr = 2.0 * (zr * dzr - zi * dzi) + dc;
+
+            dzi = 2.0 * (zr * dzi + zi * dzr);
+            dzr = tempdzr;
+
+            double tempzr = zr * zr - zi * zi + cr;
+
+            zi = 2.0 * zr * zi + ci;
+            zr = tempzr;
+        }
+
+        double modulus = Math.hypot(zr, zi);
+
+        return 2.0 * modulus * Math.log(modulus) / Math.hypot(dzr, dzi);
+    }
+
+    /** Returns the escape value of the points that do not escape within maxNumIterations iterations. */
+    static int insideValue(int maxNumIterations) {
+        return maxNumIterations << FRACTION_BITS;
+    }
+
+    /** Returns the whole number of iterations in an escape value. */
+    static int countOf(int escapeValue) {
+        return escapeValue >> FRACTION_BITS;
+    }
+
+    /**
+     * Returns the escape value of a point c that escaped after n iterations:
+     * n in the high bits, and in the low FRACTION_BITS bits a fraction that
+     * approaches 1 as the orbit comes closer to needing one more iteration
+     * to escape (the "smooth" or "continuous" iteration count), so that the
+     * values vary continuously across the boundaries between counts.
+     *
+     * The fraction is found by iterating a few more times, until |z| is far
+     * beyond the escape radius: each iteration then squares |z|, so
+     * log2(log2|z|) grows by very nearly 1 per iteration.
+     *
+     * The point is counted as iterated, with its n iterations and the extra
+     * ones (see IterationCount).
+     *
+     * @param zr the real part of the first point of the orbit with |z| >= 2
+     * @param zi the imaginary part of that point
+     */
+    static int escapeValue(int n, double zr, double zi, double cr, double ci) {
+        IterationCount count = ITERATION_COUNTS.get();
+
+        ++count.points;
+        count.iterations += n + EXTRA_ITERATIONS;
+
+        for (int k = 0; k < EXTRA_ITERATIONS; ++k) {
+            double tempzr = zr * zr - zi * zi + cr;
+
+            zi = 2.0 * zr * zi + ci;
+            zr = tempzr;
+        }
+
+        // log2(log2|z|) is EXTRA_ITERATIONS when the orbit only just escaped (|z| = 2
+        // at escape), and EXTRA_ITERATIONS + 1 when it nearly escaped one iteration
+        // sooner (|z| = 4 at escape).
+        double logLogModulus = Math.log(Math.log(zr * zr + zi * zi) * 0.5 / LN2) / LN2;
+        int fraction = (int)((EXTRA_ITERATIONS + 1 - logLogModulus) * (1 << FRACTION_BITS));
+
+        fraction = Math.max(0, Math.min(fraction, (1 << FRACTION_BITS) - 1));
+        return (n << FRACTION_BITS) | fraction;
+    }
+
+    /**
+     * Tests whether c lies inside the main cardioid or the period-2 bulb
+     * (the disc of radius 1/4 around -1), both of which are inside the set.
+     */
+    static boolean isInMainCardioidOrPeriod2Bulb(double cr, double ci) {
+        double ci2 = ci * ci;
+        double xr = cr - 0.25;
+        double q = xr * xr + ci2;
+
+        if (q * (q + xr) < 0.25 * ci2) {
+            return true;
+        }
+
+        double xb = cr + 1.0;
+
+        return xb * xb + ci2 < 0.0625;
+    }
+}
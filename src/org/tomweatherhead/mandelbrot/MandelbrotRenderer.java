@@ -0,0 +1,1220 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * Renders views of the Mandelbrot set, or of the Julia set of a point, into
+ * a FrameBuffer: the view and its navigation, the iteration limit and
+ * palette, the choice of kernel for the zoom level, the tile cache and
+ * store, and the progressive (quadtree) schedule.
+ *
+ * A view is started with startView() and then rendered one band of rows at a
+ * time by renderNextBand(), so that the caller can show each band as soon as
+ * it is done, and can stop between bands. Each band is sized to take about
+ * the band time budget, however much its squares cost.
+ *
+ * This class has no Android dependencies, so it can be run and benchmarked
+ * on any JVM. It is not thread-safe; the caller serialises access to it,
+ * except for cancel(), which may be called from any thread.
+ */
+class MandelbrotRenderer {
+    /** Deeper than this, the view is rendered in double-double precision */
+    static final int DOUBLE_PRECISION_ZOOM_LIMIT = 50;
+
+    /** Deeper than this, the view is rendered by perturbation from a high-precision reference orbit */
+    static final int DOUBLE_DOUBLE_ZOOM_LIMIT = 90;
+
+    /** The deepest zoom at which the pixel size, and each pixel's offset, is still a normal double */
+    static final int MAX_ZOOM_EXPONENT = 960;
+
+    /** The iteration limit of the home view */
+    static final int BASE_MAX_NUM_ITERATIONS = 256;
+
+    /** How much the iteration limit grows with each 2x zoom */
+    static final int MAX_NUM_ITERATIONS_PER_ZOOM = 64;
+
+    /** The highest iteration limit; escape values must fit in an int */
+    static final int MAX_MAX_NUM_ITERATIONS = 1 << 20;
+
+    /** The default memory budget of the tile cache */
+    static final long DEFAULT_TILE_CACHE_BYTES = 16L * 1024 * 1024;
+
+    /** The default size of the tile store on disk */
+    static final long DEFAULT_TILE_STORE_BYTES = 64L * 1024 * 1024;
+
+    private static final double DEFAULT_VIEW_LEFT = -2.25;
+    private static final double DEFAULT_VIEW_TOP = 1.5;
+    private static final double DEFAULT_VIEW_WIDTH = 3.0;
+    private static final double DEFAULT_VIEW_HEIGHT = 3.0;
+
+    /* The square that the home view of a Julia set covers; it holds the Julia set of any c in the Mandelbrot set */
+    private static final double JULIA_VIEW_LEFT = -1.75;
+    private static final double JULIA_VIEW_TOP = 1.75;
+    private static final double JULIA_VIEW_SIZE = 3.5;
+
+    /**
+     * The significant bits of the home view's pixel size. With a short
+     * mantissa, every pixel's coordinates at every zoom level are exact in a
+     * double, so the samples kept from one view are exactly the samples of
+     * the next, on any canvas size.
+     */
+    private static final int PIXEL_SIZE_BITS = 8;
+
+    private final ParallelRenderer mParallelRenderer;
+
+    /** The iteration counts of tiles rendered earlier, for revisited views */
+    private final TileCache mTileCache = new TileCache(DEFAULT_TILE_CACHE_BYTES);
+
+    /** Keeps the tiles on disk, behind the tile cache; null to keep them in memory only */
+    private TileStore mTileStore = null;
+
+    private final RenderMetrics mMetrics = new RenderMetrics();
+
+    private FrameBuffer mFrame = new FrameBuffer(1, 1);
+
+    /*
+     * The canvas's home view: the default square across the canvas's shorter
+     * side (or a little more, see PIXEL_SIZE_BITS), widened along the longer
+     * side so that the pixels stay square. Its corner is on the pixel grid
+     * that starts at the default square's corner.
+     */
+    private BigDecimal mHomeViewLeft = new BigDecimal(DEFAULT_VIEW_LEFT);
+    private BigDecimal mHomeViewTop = new BigDecimal(DEFAULT_VIEW_TOP);
+    private double mHomeViewWidth = DEFAULT_VIEW_WIDTH;
+    private double mHomeViewHeight = DEFAULT_VIEW_HEIGHT;
+
+    /** The width of the first pass's square: the smallest power of 2 that covers the canvas */
+    private int mFirstSquareWidth = 1;
+
+    /** True to render the Julia set of the point (mJuliaCr, mJuliaCi) instead of the Mandelbrot set */
+    private boolean mJulia = false;
+    private double mJuliaCr = 0.0;
+    private double mJuliaCi = 0.0;
+
+    /*
+     * The Mandelbrot set view that Julia set mode was entered from, to pick c
+     * from and to go back to: its centre and zoom level, which do not depend
+     * on the canvas size
+     */
+    private BigDecimal mMandelbrotCentreR = new BigDecimal(DEFAULT_VIEW_LEFT + DEFAULT_VIEW_WIDTH / 2.0);
+    private BigDecimal mMandelbrotCentreI = new BigDecimal(DEFAULT_VIEW_TOP - DEFAULT_VIEW_HEIGHT / 2.0);
+    private int mMandelbrotZoomExponent = 0;
+    private int mMandelbrotMaxNumIterationsOverride = 0;
+
+    /** Maps the current view's escape values to colours */
+    private Palette mPalette = new Palette(BASE_MAX_NUM_ITERATIONS);
+
+    /** The iteration limit set for the current view, or 0 to scale it with the zoom */
+    private int mMaxNumIterationsOverride = 0;
+
+    private EscapeTimeKernel mKernel;
+
+    /** Iterates the batches of points of double-precision views; null to iterate one point at a time */
+    private MandelbrotBatchKernel mBatchKernel = null;
+
+    /** The corner of the view; kept exactly, since a double cannot resolve pixels at deep zooms */
+    private BigDecimal mViewLeft = BigDecimal.ZERO;
+    private BigDecimal mViewTop = BigDecimal.ZERO;
+    private double mViewWidth = 0.0;
+    private double mViewHeight = 0.0;
+    private int mZoomExponent = 0;
+
+    /* The progress of the progressive passes through the current view */
+    private int mPassSquareWidth = 0;
+    private int mPassTop = 0;
+    private boolean mComplete = true;
+
+    /**
+     * True if most of the current view was kept from the last one (e.g.
+     * after a pan), so that instead of the progressive passes, only the
+     * pixels that are not known are calculated, row by row
+     */
+    private boolean mFillingGaps = false;
+
+    /* The rows written by the last call to startView() or renderNextBand() */
+    private int mBandTop = 0;
+    private int mBandHeight = 0;
+
+    /** The default time budget of a band: half a frame at 60 frames per second */
+    static final long DEFAULT_BAND_BUDGET_NANOS = 8000000L;
+
+    /** About how long a band should take */
+    private long mBandBudgetNanos = DEFAULT_BAND_BUDGET_NANOS;
+
+    /** The average time taken by a square of the recent bands, over all the worker threads */
+    private double mNanosPerSquare = 1000.0;
+
+    /** The average time taken by a pixel of the recent bands that filled gaps */
+    private double mNanosPerGapPixel = 300.0;
+
+    /** True to finish each view by boundary tracing instead of sampling every pixel */
+    private boolean mBoundaryTracing = false;
+
+    /** The square width at which boundary tracing takes over from the progressive passes */
+    private int mBoundaryTraceSquareWidth = 32;
+
+    /**
+     * True to estimate the distance of the samples from the set, and fill
+     * the squares far from it by interpolation instead of sampling them
+     */
+    private boolean mDistanceEstimation = false;
+
+    /** True to darken the pixels close to the set by their distance estimates */
+    private boolean mDistanceShading = false;
+
+    /** The colour scheme of the palette (one of the Palette.SCHEME_* constants) */
+    private int mColourScheme = Palette.SCHEME_RAINBOW;
+
+    /** The number of colour table entries by which the palette is turned (see Palette) */
+    private int mColourCycleOffset = 0;
+
+    public MandelbrotRenderer() {
+        this(new ParallelRenderer());
+    }
+
+    public MandelbrotRenderer(ParallelRenderer parallelRenderer) {
+        mParallelRenderer = parallelRenderer;
+    }
+
+    /**
+     * Returns the iteration limit for a zoom level. Deeper views need more
+     * iterations to tell the points near the boundary from the points in the
+     * set, so the limit grows with the zoom.
+     */
+    static int getDefaultMaxNumIterations(int zoomExponent) {
+        return (int)Math.min(BASE_MAX_NUM_ITERATIONS + (long)MAX_NUM_ITERATIONS_PER_ZOOM * zoomExponent,
+                MAX_MAX_NUM_ITERATIONS);
+    }
+
+    /**
+     * Changes the size of the canvas, which may have any width and height.
+     * The framebuffer is replaced, so the next view is rendered from scratch;
+     * its arrays are reused if the number of pixels is the same.
+     * If there is a view, it is replaced by the view of the same zoom level
+     * and centre on the new canvas.
+     */
+    public void setCanvasSize(int width, int height) {
+        // Unless the new framebuffer can take over the old one's arrays, let them go before allocating its own.
+        FrameBuffer recycled = mFrame.pixels.length == width * height ? mFrame : null;
+
+        mFrame = null;
+        mFrame = new FrameBuffer(width, height, recycled);
+        mFrame.enableDistances(mDistanceEstimation || mDistanceShading);
+        mComplete = true;
+        setHomeView();
+
+        mFirstSquareWidth = 1;
+
+        while (mFirstSquareWidth < Math.max(width, height)) {
+            mFirstSquareWidth *= 2;
+        }
+
+        if (mViewWidth > 0.0) {
+            int maxNumIterationsOverride = mMaxNumIterationsOverride;
+            BigDecimal centreR = mViewLeft.add(new BigDecimal(mViewWidth / 2.0));
+            BigDecimal centreI = mViewTop.subtract(new BigDecimal(mViewHeight / 2.0));
+
+            mViewWidth = 0.0;		// So that the view counts as changed
+            zoomTo(centreR, centreI, mZoomExponent);
+            setMaxNumIterations(maxNumIterationsOverride);
+        }
+    }
+
+    /** Sets the home view for the canvas size and the set (Mandelbrot or Julia) that is shown. */
+    private void setHomeView() {
+        int width = mFrame.width;
+        int height = mFrame.height;
+        double pixelSize = getHomePixelSize(getDefaultViewWidth());
+
+        // Centre the default square, to the nearest pixel.
+        mHomeViewLeft = getDefaultViewLeft().subtract(new BigDecimal(pixelSize)
+                .multiply(BigDecimal.valueOf((int)((width - getDefaultViewWidth() / pixelSize) / 2.0))));
+        mHomeViewTop = getDefaultViewTop().add(new BigDecimal(pixelSize)
+                .multiply(BigDecimal.valueOf((int)((height - getDefaultViewWidth() / pixelSize) / 2.0))));
+        mHomeViewWidth = pixelSize * width;
+        mHomeViewHeight = pixelSize * height;
+    }
+
+    /** Returns the size of the home view's pixels, for a default square defaultViewWidth wide, on this canvas. */
+    private double getHomePixelSize(double defaultViewWidth) {
+        double pixelSize = defaultViewWidth / Math.min(mFrame.width, mFrame.height);
+        double pixelSizeUnit = Math.scalb(1.0, Math.getExponent(pixelSize) - PIXEL_SIZE_BITS + 1);
+
+        return Math.ceil(pixelSize / pixelSizeUnit) * pixelSizeUnit;
+    }
+
+    /* The corner and size of the default square of the set that is shown, where the pixel grid starts */
+    private BigDecimal getDefaultViewLeft() {
+        return new BigDecimal(mJulia ? JULIA_VIEW_LEFT : DEFAULT_VIEW_LEFT);
+    }
+
+    private BigDecimal getDefaultViewTop() {
+        return new BigDecimal(mJulia ? JULIA_VIEW_TOP : DEFAULT_VIEW_TOP);
+    }
+
+    private double getDefaultViewWidth() {
+        return mJulia ? JULIA_VIEW_SIZE : DEFAULT_VIEW_WIDTH;
+    }
+
+    public boolean isJulia() {
+        return mJulia;
+    }
+
+    public double getJuliaCr() {
+        return mJuliaCr;
+    }
+
+    public double getJuliaCi() {
+        return mJuliaCi;
+    }
+
+    /** Returns the centre of the Mandelbrot set view that exitJulia() goes back to. */
+    public BigDecimal getMandelbrotCentreR() {
+        return mMandelbrotCentreR;
+    }
+
+    public BigDecimal getMandelbrotCentreI() {
+        return mMandelbrotCentreI;
+    }
+
+    public int getMandelbrotZoomExponent() {
+        return mMandelbrotZoomExponent;
+    }
+
+    public int getMandelbrotMaxNumIterationsOverride() {
+        return mMandelbrotMaxNumIterationsOverride;
+    }
+
+    /**
+     * Sets the Mandelbrot set view that exitJulia() goes back to, and that
+     * getMandelbrotPoint() picks points from in Julia set mode, e.g. when
+     * Julia set mode is restored.
+     */
+    public void setMandelbrotView(BigDecimal centreR, BigDecimal centreI, int zoomExponent,
+            int maxNumIterationsOverride) {
+        mMandelbrotCentreR = centreR;
+        mMandelbrotCentreI = centreI;
+        mMandelbrotZoomExponent = zoomExponent;
+        mMandelbrotMaxNumIterationsOverride = maxNumIterationsOverride;
+    }
+
+    /**
+     * Returns the point c = result[0] + result[1] * i at pixel (x, y) of the
+     * Mandelbrot set view: the current view, or in Julia set mode, the view
+     * that exitJulia() would go back to on this canvas (to within the
+     * rounding of its corner to the pixel grid).
+     */
+    public double[] getMandelbrotPoint(int x, int y) {
+
+        if (!mJulia) {
+
+            if (mViewWidth <= 0.0) {
+                goHome();
+            }
+
+            return new double[] {
+                mViewLeft.add(new BigDecimal(mViewWidth / mFrame.width * x)).doubleValue(),
+                mViewTop.subtract(new BigDecimal(mViewHeight / mFrame.height * y)).doubleValue()
+            };
+        }
+
+        double pixelSize = Math.scalb(getHomePixelSize(DEFAULT_VIEW_WIDTH), -mMandelbrotZoomExponent);
+
+        return new double[] {
+            mMandelbrotCentreR.add(new BigDecimal(pixelSize * (x - mFrame.width / 2.0))).doubleValue(),
+            mMandelbrotCentreI.subtract(new BigDecimal(pixelSize * (y - mFrame.height / 2.0))).doubleValue()
+        };
+    }
+
+    /**
+     * Shows the Julia set of the point c = cr + ci * i. Entering Julia set
+     * mode goes to the Julia set's home view, and remembers the Mandelbrot
+     * set view to go back to; in Julia set mode, the view is kept, and only
+     * c changes. Either way the next view is rendered from scratch.
+     */
+    public void setJulia(double cr, double ci) {
+
+        if (!mJulia) {
+            saveMandelbrotView();
+            mJulia = true;
+            setHomeView();
+            mViewWidth = 0.0;		// So that the view counts as changed
+            goHome();
+        }
+
+        mJuliaCr = cr;
+        mJuliaCi = ci;
+        mFrame.discardView();
+        mComplete = true;
+    }
+
+    /**
+     * Goes back from Julia set mode to the Mandelbrot set view that it was
+     * entered from.
+     *
+     * @return false if the Mandelbrot set is already shown
+     */
+    public boolean exitJulia() {
+
+        if (!mJulia) {
+            return false;
+        }
+
+        mJulia = false;
+        setHomeView();
+        mViewWidth = 0.0;
+        zoomTo(mMandelbrotCentreR, mMandelbrotCentreI, mMandelbrotZoomExponent);
+        setMaxNumIterations(mMandelbrotMaxNumIterationsOverride);
+        mFrame.discardView();
+        mComplete = true;
+        return true;
+    }
+
+    /** Remembers the current view as the Mandelbrot set view; the home view if there is none yet. */
+    private void saveMandelbrotView() {
+
+        if (mViewWidth <= 0.0) {
+            goHome();
+        }
+
+        mMandelbrotCentreR = mViewLeft.add(new BigDecimal(mViewWidth / 2.0));
+        mMandelbrotCentreI = mViewTop.subtract(new BigDecimal(mViewHeight / 2.0));
+        mMandelbrotZoomExponent = mZoomExponent;
+        mMandelbrotMaxNumIterationsOverride = mMaxNumIterationsOverride;
+    }
+
+    public FrameBuffer getFrame() {
+        return mFrame;
+    }
+
+    /** Returns the current view's iteration limit. */
+    public int getMaxNumIterations() {
+
+        if (mMaxNumIterationsOverride > 0) {
+            return mMaxNumIterationsOverride;
+        }
+
+        return getDefaultMaxNumIterations(mZoomExponent);
+    }
+
+    /**
+     * Sets the iteration limit of the current view, or 0 to go back to the
+     * limit for its zoom level; call startView() to render the view with it.
+     * The limit applies until the view changes.
+     */
+    public void setMaxNumIterations(int maxNumIterations) {
+        mMaxNumIterationsOverride = Math.max(0, Math.min(maxNumIterations, MAX_MAX_NUM_ITERATIONS));
+    }
+
+    /** Returns the iteration limit set for the current view, or 0 if it scales with the zoom. */
+    public int getMaxNumIterationsOverride() {
+        return mMaxNumIterationsOverride;
+    }
+
+    public Palette getPalette() {
+        return mPalette;
+    }
+
+    /**
+     * Sets the kernel that iterates batches of points in double-precision
+     * views, e.g. a vector kernel on a desktop JVM, or null to iterate one
+     * point at a time; call startView() to use it.
+     */
+    public void setBatchKernel(MandelbrotBatchKernel batchKernel) {
+        mBatchKernel = batchKernel;
+    }
+
+    public TileCache getTileCache() {
+        return mTileCache;
+    }
+
+    /**
+     * Sets the store that keeps the tiles of finished views on disk, or null
+     * for none. The renderer closes the store when it is shut down.
+     */
+    public void setTileStore(TileStore tileStore) {
+        mTileStore = tileStore;
+    }
+
+    public TileStore getTileStore() {
+        return mTileStore;
+    }
+
+    /** Returns the timings of the recent views; the caller may add its frames' timings. */
+    public RenderMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Sets about how long each call to renderNextBand() should take. A band
+     * is never less than one row of squares, so the first passes, and very
+     * expensive rows, may take longer.
+     */
+    public void setBandBudgetNanos(long bandBudgetNanos) {
+        mBandBudgetNanos = Math.max(1L, bandBudgetNanos);
+    }
+
+    public long getBandBudgetNanos() {
+        return mBandBudgetNanos;
+    }
+
+    /**
+     * Turns boundary tracing (the Mariani-Silver algorithm) on or off; call
+     * startView() to render the view again.
+     */
+    public void setBoundaryTracing(boolean b) {
+        mBoundaryTracing = b;
+        mFrame.discardView();	// Boundary tracing fills some pixels without calculating them.
+    }
+
+    public boolean isBoundaryTracing() {
+        return mBoundaryTracing;
+    }
+
+    /**
+     * Turns distance-estimate guided rendering on or off: each sample of the
+     * coarse passes is calculated with its distance from the set, and the
+     * squares whose corners are all far from it are filled by interpolation
+     * (see ParallelRenderer). The distances are only made in double
+     * precision, so deeper views are rendered as usual. Call startView() to
+     * render the view again.
+     */
+    public void setDistanceEstimation(boolean b) {
+        mDistanceEstimation = b;
+        mFrame.enableDistances(mDistanceEstimation || mDistanceShading);
+        mFrame.discardView();	// Interpolation fills some pixels without calculating them.
+    }
+
+    public boolean isDistanceEstimation() {
+        return mDistanceEstimation;
+    }
+
+    /**
+     * Turns shading by distance (see Palette) on or off; call startView() to
+     * render the view again. Shading needs the distance of every pixel, so
+     * every pixel is calculated with it, and the cached tiles, which have no
+     * distances, are not used. With the distances at hand, the squares far
+     * from the set are interpolated as with distance estimation.
+     */
+    public void setDistanceShading(boolean b) {
+        mDistanceShading = b;
+        mFrame.enableDistances(mDistanceEstimation || mDistanceShading);
+        mFrame.discardView();
+    }
+
+    public boolean isDistanceShading() {
+        return mDistanceShading;
+    }
+
+    /**
+     * Sets the palette's colour scheme (one of the Palette.SCHEME_*
+     * constants), and paints the framebuffer again with it; nothing is
+     * calculated, so the caller only has to draw the whole framebuffer.
+     */
+    public void setColourScheme(int colourScheme) {
+        mColourScheme = colourScheme;
+        repaint();
+    }
+
+    public int getColourScheme() {
+        return mPalette.getColourScheme();
+    }
+
+    /**
+     * Turns the palette's colours by offset colour table entries (see
+     * Palette), and paints the framebuffer again with them, as
+     * setColourScheme() does; e.g. once a frame to cycle the colours.
+     */
+    public void setColourCycleOffset(int offset) {
+        mColourCycleOffset = offset;
+        repaint();
+    }
+
+    public int getColourCycleOffset() {
+        return mPalette.getCycleOffset();
+    }
+
+    /**
+     * Paints the framebuffer again from its escape values with the current
+     * colours. The parts of an unfinished view that are not calculated yet
+     * are filled as the passes so far filled them.
+     */
+    private void repaint() {
+        mPalette = new Palette(mPalette.getMaxNumIterations(), mPalette.isShadingByDistance(), mColourScheme,
+                mColourCycleOffset);
+
+        if (mFillingGaps) {
+            mFrame.repaint(mPalette, 0, 1, mFirstSquareWidth);
+        } else {
+            // The rows above the pass's top have been sampled at half the pass's square width.
+            mFrame.repaint(mPalette, mPassTop, Math.max(1, mPassSquareWidth / 2), Math.max(1, mPassSquareWidth));
+        }
+    }
+
+    public BigDecimal getViewLeft() {
+        return mViewLeft;
+    }
+
+    public BigDecimal getViewTop() {
+        return mViewTop;
+    }
+
+    public double getViewWidth() {
+        return mViewWidth;
+    }
+
+    public double getViewHeight() {
+        return mViewHeight;
+    }
+
+    public int getZoomExponent() {
+        return mZoomExponent;
+    }
+
+    /**
+     * Sets the view as it is, e.g. to restore a saved view.
+     *
+     * @param maxNumIterationsOverride the view's iteration limit, or 0 for the limit for its zoom level
+     */
+    public void setView(BigDecimal viewLeft, BigDecimal viewTop, double viewWidth, double viewHeight,
+            int zoomExponent, int maxNumIterationsOverride) {
+        mViewLeft = viewLeft;
+        mViewTop = viewTop;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+        mZoomExponent = zoomExponent;
+        setMaxNumIterations(maxNumIterationsOverride);
+    }
+
+    /**
+     * Returns to the default (home) view.
+     *
+     * @return false if the home view is already the current view
+     */
+    public boolean goHome() {
+        return constrainView(mHomeViewLeft, mHomeViewTop, mHomeViewWidth, mHomeViewHeight, 0);
+    }
+
+    public boolean isAtMaxZoom() {
+        return mZoomExponent >= getMaxZoomExponent();
+    }
+
+    private int getMaxZoomExponent() {
+        // The Julia set kernel works in double precision only.
+        return mJulia ? DOUBLE_PRECISION_ZOOM_LIMIT : MAX_ZOOM_EXPONENT;
+    }
+
+    /**
+     * Zooms in by 2x around the pixel (x, y).
+     *
+     * @return false if the view did not change
+     */
+    public boolean zoomIn(int x, int y) {
+
+        if (isAtMaxZoom()) {
+            return false;
+        }
+
+        // Place the new view's corner on a pixel of the current view, so that the new
+        // view's even-numbered rows and columns land exactly on pixels already calculated.
+        // The corner is kept exactly, so that it stays accurate at any depth.
+        BigDecimal newViewLeft = mViewLeft.add(new BigDecimal(mViewWidth / mFrame.width)
+                .multiply(BigDecimal.valueOf(x - mFrame.width / 4)));
+        BigDecimal newViewTop = mViewTop.subtract(new BigDecimal(mViewHeight / mFrame.height)
+                .multiply(BigDecimal.valueOf(y - mFrame.height / 4)));
+
+        return constrainView(newViewLeft, newViewTop, mViewWidth / 2.0, mViewHeight / 2.0, mZoomExponent + 1);
+    }
+
+    /**
+     * Zooms out by 2x, keeping the centre where it is.
+     *
+     * @return false if the view did not change
+     */
+    public boolean zoomOut() {
+        // The current view becomes the new view's centre quarter, half a view in
+        // from each edge, and its pixels become every pixel of that quarter.
+        BigDecimal newViewLeft = mViewLeft.subtract(new BigDecimal(mViewWidth / 2.0));
+        BigDecimal newViewTop = mViewTop.add(new BigDecimal(mViewHeight / 2.0));
+
+        return constrainView(newViewLeft, newViewTop, mViewWidth * 2.0, mViewHeight * 2.0, mZoomExponent - 1);
+    }
+
+    /**
+     * Moves the view, and zooms it by 2^zoomSteps (out, if zoomSteps is
+     * negative), so that the point at pixel (x, y) of the current view lands
+     * at about pixel (newX, newY) of the new view, e.g. at the end of a pan
+     * or pinch gesture. The pixels may lie outside the canvas.
+     *
+     * The new view's corner is on the pixel grid of its zoom level. When
+     * zooming in, or only moving, the current view's corner is on that grid,
+     * so the new corner is a whole number of new pixels away from it: every
+     * pixel of the current view that is still in sight lies on a pixel of the
+     * new view, and is kept.
+     *
+     * @return false if the view did not change
+     */
+    public boolean moveView(double x, double y, double newX, double newY, int zoomSteps) {
+        zoomSteps = Math.max(-mZoomExponent, Math.min(zoomSteps, getMaxZoomExponent() - mZoomExponent));
+
+        double scale = Math.scalb(1.0, zoomSteps);
+        double newPixelWidth = mViewWidth / mFrame.width / scale;
+        double newPixelHeight = mViewHeight / mFrame.height / scale;
+
+        if (zoomSteps < 0) {
+            // The current corner need not be on the coarser grid, so go by the new centre.
+            BigDecimal centreR = mViewLeft.add(new BigDecimal(mViewWidth / mFrame.width * x))
+                    .add(new BigDecimal(newPixelWidth * (mFrame.width / 2.0 - newX)));
+            BigDecimal centreI = mViewTop.subtract(new BigDecimal(mViewHeight / mFrame.height * y))
+                    .subtract(new BigDecimal(newPixelHeight * (mFrame.height / 2.0 - newY)));
+
+            return zoomTo(centreR, centreI, mZoomExponent + zoomSteps);
+        }
+
+        // The new view's corner, in new pixels from the current corner.
+        long column = Math.round(x * scale - newX);
+        long row = Math.round(y * scale - newY);
+        BigDecimal newViewLeft = mViewLeft.add(new BigDecimal(newPixelWidth).multiply(BigDecimal.valueOf(column)));
+        BigDecimal newViewTop = mViewTop.subtract(new BigDecimal(newPixelHeight).multiply(BigDecimal.valueOf(row)));
+
+        return constrainView(newViewLeft, newViewTop, mViewWidth / scale, mViewHeight / scale,
+                mZoomExponent + zoomSteps);
+    }
+
+    /**
+     * Moves to the view of zoom level zoomExponent (2^zoomExponent times
+     * the home view) whose centre is nearest to (centreR, centreI), with its
+     * corner on the pixel grid of that zoom level.
+     *
+     * @return false if the view did not change
+     */
+    public boolean zoomTo(BigDecimal centreR, BigDecimal centreI, int zoomExponent) {
+        zoomExponent = Math.max(0, Math.min(zoomExponent, MAX_ZOOM_EXPONENT));
+
+        double scale = Math.scalb(1.0, -zoomExponent);
+        double newViewWidth = mHomeViewWidth * scale;
+        double newViewHeight = mHomeViewHeight * scale;
+        BigDecimal pixelWidth = new BigDecimal(newViewWidth / mFrame.width);
+        BigDecimal pixelHeight = new BigDecimal(newViewHeight / mFrame.height);
+        BigInteger column = centreR.subtract(getDefaultViewLeft())
+                .divide(pixelWidth, MathContext.DECIMAL128).toBigInteger()
+                .subtract(BigInteger.valueOf(mFrame.width / 2));
+        BigInteger row = getDefaultViewTop().subtract(centreI)
+                .divide(pixelHeight, MathContext.DECIMAL128).toBigInteger()
+                .subtract(BigInteger.valueOf(mFrame.height / 2));
+        BigDecimal newViewLeft = getDefaultViewLeft().add(pixelWidth.multiply(new BigDecimal(column)));
+        BigDecimal newViewTop = getDefaultViewTop().subtract(pixelHeight.multiply(new BigDecimal(row)));
+
+        return constrainView(newViewLeft, newViewTop, newViewWidth, newViewHeight, zoomExponent);
+    }
+
+    /**
+     * Starts rendering the current view: keeps whatever the framebuffer and
+     * the tile cache already hold for it, and fills the whole canvas with the
+     * colour of its first sample. The whole canvas is the first band.
+     *
+     * If at least half of the view's pixels were kept from the last view,
+     * e.g. after a pan, the progressive passes would mostly revisit known
+     * pixels, so the gaps are filled at full resolution instead: the view is
+     * finished after calculating only the pixels that are not known.
+     */
+    public void startView() {
+        long start = System.nanoTime();
+
+        mPalette = new Palette(getMaxNumIterations(), mDistanceShading, mColourScheme, mColourCycleOffset);
+
+        // Keep the iteration counts of the previous view's pixels that lie on this view's pixels.
+        int numKept = mFrame.startView(mViewLeft, mViewTop, mViewWidth / mFrame.width,
+                mViewHeight / mFrame.height, mPalette);
+
+        mFillingGaps = numKept >= (long)mFrame.width * mFrame.height / 2;
+        mKernel = createKernel();
+        loadCachedTiles();
+
+        // The first sample is calculated on this thread, which counts its own kernels' work.
+        MandelbrotKernel.IterationCount count = MandelbrotKernel.getIterationCount();
+        long points = count.points;
+        long iterations = count.iterations;
+
+        ParallelRenderer.sampleAndFillSquare(mKernel, 0, 0, mFirstSquareWidth, mPalette, mFrame);
+        mMetrics.startView(mZoomExponent, getMaxNumIterations(), mFrame.width, mFrame.height,
+                mKernel.getClass().getSimpleName(), System.nanoTime() - start,
+                count.points - points, count.iterations - iterations);
+
+        mBandTop = 0;
+        mBandHeight = mFrame.height;
+        mPassTop = 0;
+        mPassSquareWidth = mFillingGaps ? 1 : mFirstSquareWidth;
+        mComplete = false;
+    }
+
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Returns the width of the squares that the samples of the current view
+     * so far stand for: every square of this width on the view's grid has
+     * been sampled, and 1 once the view is complete. When only the gaps of
+     * a view are filled, there are no passes, and this is the first square
+     * width until the view is complete.
+     */
+    public int getResolution() {
+
+        if (mComplete) {
+            return 1;
+        }
+
+        if (mFillingGaps) {
+            return mFirstSquareWidth;
+        }
+
+        // During a pass, the squares of the pass before are the ones that have all been sampled.
+        return mPassTop == 0 ? mPassSquareWidth : mPassSquareWidth * 2;
+    }
+
+    /**
+     * Stops the band that is being rendered within one row of squares, e.g.
+     * because the view is about to change; the view stays incomplete, and the
+     * next call to renderNextBand() carries on where the band stopped. May be
+     * called from any thread.
+     */
+    public void cancel() {
+        mParallelRenderer.cancel();
+    }
+
+    /**
+     * Renders the next band of rows of the current pass, taking about the
+     * band time budget. The band ends early at the end of the pass, or if
+     * cancel() is called.
+     *
+     * @return true if the view is now complete
+     */
+    public boolean renderNextBand() {
+        return renderNextBand(mBandBudgetNanos);
+    }
+
+    /**
+     * Renders as many of the coarse passes of the view as fit in about
+     * budgetNanos, going by the recent cost of a square, and returns; e.g.
+     * for a preview that has to keep up with a finger, however the cost of
+     * the view differs from the last. The view is left at a lower
+     * resolution, and renderNextBand() refines it from there.
+     *
+     * @return true if the view is now complete
+     */
+    public boolean renderPreview(long budgetNanos) {
+        int generation = mParallelRenderer.getGeneration();
+        long start = System.nanoTime();
+
+        while (!mComplete && mParallelRenderer.getGeneration() == generation) {
+            long elapsed = System.nanoTime() - start;
+            int squareWidth = mPassSquareWidth;
+            long numColumns = (mFrame.width + squareWidth - 1) / squareWidth;
+            long numRows = (mFrame.height + squareWidth - 1) / squareWidth;
+            long squaresLeft = (numRows - mPassTop / squareWidth) * numColumns;
+
+            if (elapsed + mNanosPerSquare * squaresLeft > budgetNanos) {
+                break;
+            }
+
+            renderNextBand(budgetNanos - elapsed);
+        }
+
+        return mComplete;
+    }
+
+    /** Renders the next band of rows of the current pass, taking about budgetNanos. */
+    private boolean renderNextBand(long budgetNanos) {
+
+        if (mComplete) {
+            return true;
+        }
+
+        if (mFillingGaps) {
+            return fillNextGaps(budgetNanos);
+        }
+
+        int generation = mParallelRenderer.getGeneration();
+
+        int squareWidth = mPassSquareWidth;
+        int numColumns = (mFrame.width + squareWidth - 1) / squareWidth;
+        int numRows = (mFrame.height + squareWidth - 1) / squareWidth;
+        int row = mPassTop / squareWidth;
+
+        // When boundary tracing, the squares of this width are traced at full
+        // resolution, and this is the last pass.
+        boolean lastPass = mBoundaryTracing && squareWidth <= mBoundaryTraceSquareWidth;
+
+        long points = mParallelRenderer.getPointCount();
+        long iterations = mParallelRenderer.getIterationCount();
+        long start = System.nanoTime();
+        long elapsed = 0;
+
+        // Render the rows in chunks, each sized by the cost of the squares so far
+        // to fill what is left of the budget.
+        do {
+            long rowNanos = Math.max(1L, (long)(mNanosPerSquare * numColumns));
+            int rowsThisChunk = (int)Math.min((budgetNanos - elapsed) / rowNanos, numRows - row);
+
+            rowsThisChunk = Math.max(1, rowsThisChunk);
+
+            long chunkStart = System.nanoTime();
+
+            int rowsRendered;
+
+            if (lastPass) {
+                rowsRendered = mParallelRenderer.traceRows(mKernel, squareWidth, row, rowsThisChunk, numColumns,
+                        mPalette, mFrame, generation);
+            } else {
+                rowsRendered = mParallelRenderer.renderRows(mKernel, squareWidth, row, rowsThisChunk, numColumns,
+                        mPalette, mFrame, generation);
+            }
+
+            if (rowsRendered < rowsThisChunk) {
+                row += rowsRendered;		// Cancelled
+                break;
+            }
+
+            long now = System.nanoTime();
+            long chunkNanos = now - chunkStart;
+
+            // Weight each chunk's cost by its share of the budget, so that one
+            // short chunk of unusually cheap or costly squares does not throw the estimate.
+            double weight = 0.5 * Math.min(1.0, (double)chunkNanos / budgetNanos);
+
+            mNanosPerSquare += weight * ((double)chunkNanos / ((long)rowsThisChunk * numColumns) - mNanosPerSquare);
+            row += rowsThisChunk;
+            elapsed = now - start;
+        } while (row < numRows && elapsed < budgetNanos);
+
+        mBandTop = mPassTop;
+        mPassTop = Math.min(row * squareWidth, mFrame.height);
+        mBandHeight = mPassTop - mBandTop;
+
+        if (mPassTop >= mFrame.height) {
+            mPassTop = 0;
+            mPassSquareWidth = squareWidth / 2;
+
+            if (mPassSquareWidth <= 1 || lastPass) {
+                mComplete = true;
+                storeCachedTiles();
+            }
+        }
+
+        mMetrics.addBand(lastPass ? 0 : squareWidth, System.nanoTime() - start,
+                mParallelRenderer.getPointCount() - points, mParallelRenderer.getIterationCount() - iterations);
+
+        if (mComplete) {
+            mMetrics.finishView(mFrame.iterations);
+        }
+
+        return mComplete;
+    }
+
+    /**
+     * Calculates the pixels that are not known in the next band of rows,
+     * taking about budgetNanos. Rows with nothing to calculate cost only a
+     * scan, so a pan by a few pixels costs about as many pixels' iterations.
+     */
+    private boolean fillNextGaps(long budgetNanos) {
+        int generation = mParallelRenderer.getGeneration();
+        int row = mPassTop;
+        long points = mParallelRenderer.getPointCount();
+        long iterations = mParallelRenderer.getIterationCount();
+        long start = System.nanoTime();
+        long elapsed = 0;
+
+        do {
+            // Take the rows whose gaps should fill what is left of the budget.
+            int endRow = row;
+            long numGapPixels = 0;
+
+            while (endRow < mFrame.height && (numGapPixels == 0
+                    || (numGapPixels + 1) * mNanosPerGapPixel <= budgetNanos - elapsed)) {
+                numGapPixels += mFrame.countUnknown(endRow++);
+            }
+
+            long chunkStart = System.nanoTime();
+            int rowsRendered = mParallelRenderer.fillGapRows(mKernel, row, endRow - row, mPalette, mFrame,
+                    generation);
+
+            if (rowsRendered < endRow - row) {
+                row += rowsRendered;		// Cancelled
+                break;
+            }
+
+            long now = System.nanoTime();
+            long chunkNanos = now - chunkStart;
+
+            if (numGapPixels > 0) {
+                double weight = 0.5 * Math.min(1.0, (double)chunkNanos / budgetNanos);
+
+                mNanosPerGapPixel += weight * ((double)chunkNanos / numGapPixels - mNanosPerGapPixel);
+            }
+
+            row = endRow;
+            elapsed = now - start;
+        } while (row < mFrame.height && elapsed < budgetNanos);
+
+        mBandTop = mPassTop;
+        mPassTop = row;
+        mBandHeight = mPassTop - mBandTop;
+
+        if (mPassTop >= mFrame.height) {
+            mComplete = true;
+            storeCachedTiles();
+        }
+
+        mMetrics.addBand(1, System.nanoTime() - start,
+                mParallelRenderer.getPointCount() - points, mParallelRenderer.getIterationCount() - iterations);
+
+        if (mComplete) {
+            mMetrics.finishView(mFrame.iterations);
+        }
+
+        return mComplete;
+    }
+
+    /** Renders the current view from start to finish. */
+    public void render() {
+        startView();
+
+        while (!renderNextBand()) {
+        }
+    }
+
+    /** The first row written by the last call to startView() or renderNextBand() */
+    public int getBandTop() {
+        return mBandTop;
+    }
+
+    /** The number of rows written by the last call to startView() or renderNextBand() */
+    public int getBandHeight() {
+        return mBandHeight;
+    }
+
+    /** Stops the worker threads. The renderer may not be used afterwards. */
+    public void shutdown() {
+        mParallelRenderer.shutdown();
+
+        if (mTileStore != null) {
+            mTileStore.close();
+            mTileStore = null;
+        }
+    }
+
+    /** Creates a kernel for the current view that is precise enough for its zoom level. */
+    private EscapeTimeKernel createKernel() {
+        return createKernel(mFrame.width, mFrame.height);
+    }
+
+    /**
+     * Creates a kernel for the current view rendered at width x height
+     * pixels, e.g. for a poster, that is precise enough for its zoom level.
+     */
+    EscapeTimeKernel createKernel(int width, int height) {
+        int maxNumIterations = getMaxNumIterations();
+        double pixelWidth = mViewWidth / width;
+        double pixelHeight = mViewHeight / height;
+
+        if (mJulia) {
+            return new JuliaKernel(mViewLeft.doubleValue(), mViewTop.doubleValue(), pixelWidth, pixelHeight,
+                    mJuliaCr, mJuliaCi, maxNumIterations);
+        }
+
+        // The zoom limits are for the canvas's pixels; each doubling of the width halves the pixels again.
+        int pixelZoomExponent = mZoomExponent;
+
+        for (long w = mFrame.width; w < width; w *= 2) {
+            ++pixelZoomExponent;
+        }
+
+        if (pixelZoomExponent < DOUBLE_PRECISION_ZOOM_LIMIT && mBatchKernel != null) {
+            return new BatchDoublePrecisionKernel(mViewLeft.doubleValue(), mViewTop.doubleValue(),
+                    pixelWidth, pixelHeight, maxNumIterations, mBatchKernel);
+        }
+
+        if (pixelZoomExponent < DOUBLE_PRECISION_ZOOM_LIMIT) {
+            return new DoublePrecisionKernel(mViewLeft.doubleValue(), mViewTop.doubleValue(),
+                    pixelWidth, pixelHeight, maxNumIterations);
+        }
+
+        if (pixelZoomExponent < DOUBLE_DOUBLE_ZOOM_LIMIT) {
+            return new DoubleDoubleKernel(mViewLeft, mViewTop, pixelWidth, pixelHeight, maxNumIterations);
+        }
+
+        return new PerturbationKernel(mViewLeft, mViewTop, pixelWidth, pixelHeight,
+                width, height, maxNumIterations);
+    }
+
+    /**
+     * Returns the column and row of the view's corner on the pixel grid of
+     * its zoom level, counted from the default square's corner (so a tall or
+     * wide canvas's home view starts at a negative row or column). Returns null if
+     * the corner is not on that grid (e.g. after a zoom-out from an odd
+     * position), or if the zoom is too deep for the cache's tile numbers.
+     */
+    private long[] getGridPosition() {
+
+        // The tiles' keys do not tell the Julia sets of different points apart.
+        if (mJulia) {
+            return null;
+        }
+
+        BigDecimal column = mViewLeft.subtract(new BigDecimal(DEFAULT_VIEW_LEFT))
+                .divide(new BigDecimal(mViewWidth / mFrame.width), MathContext.DECIMAL128);
+        BigDecimal row = new BigDecimal(DEFAULT_VIEW_TOP).subtract(mViewTop)
+                .divide(new BigDecimal(mViewHeight / mFrame.height), MathContext.DECIMAL128);
+
+        try {
+            BigInteger x = column.toBigIntegerExact();
+            BigInteger y = row.toBigIntegerExact();
+
+            if (x.bitLength() > 62 || y.bitLength() > 62) {
+                return null;
+            }
+
+            return new long[] { x.longValue(), y.longValue() };
+        } catch (ArithmeticException e) {
+            return null;
+        }
+    }
+
+    /** Returns a / b rounded down, also for a negative a; b is positive. */
+    private static long floorDiv(long a, long b) {
+        return a >= 0 ? a / b : -((b - 1 - a) / b);
+    }
+
+    private TileCache.Key getTileKey(long tileX, long tileY) {
+        return new TileCache.Key(mZoomExponent, mViewWidth / mFrame.width, mViewHeight / mFrame.height,
+                tileX, tileY, getMaxNumIterations());
+    }
+
+    /** Copies any cached or stored tiles of the current view into the framebuffer. */
+    private void loadCachedTiles() {
+        long[] position = getGridPosition();
+
+        if (position == null || mDistanceShading) {
+            return;
+        }
+
+        final int size = TileCache.TILE_SIZE;
+
+        for (long tileY = floorDiv(position[1], size); tileY * size < position[1] + mFrame.height; ++tileY) {
+
+            for (long tileX = floorDiv(position[0], size); tileX * size < position[0] + mFrame.width; ++tileX) {
+                TileCache.Key key = getTileKey(tileX, tileY);
+                int[] tile = mTileCache.get(key);
+
+                if (tile == null && mTileStore != null) {
+                    tile = mTileStore.get(key);
+
+                    if (tile != null) {
+                        mTileCache.put(key, tile);
+                    }
+                }
+
+                if (tile != null) {
+                    mFrame.copyTileIn(tile, (int)(tileX * size - position[0]), (int)(tileY * size - position[1]),
+                            size, mPalette);
+                }
+            }
+        }
+    }
+
+    /** Adds the tiles that lie wholly inside the finished view to the cache and the store. */
+    private void storeCachedTiles() {
+        long[] position = getGridPosition();
+
+        // Boundary tracing and the interpolation of squares far from the set (which shading by distance
+        // does too) fill some pixels without calculating them, so their results are not cached.
+        if (position == null || mBoundaryTracing || mDistanceEstimation || mDistanceShading) {
+            return;
+        }
+
+        final int size = TileCache.TILE_SIZE;
+
+        for (long tileY = floorDiv(position[1] + size - 1, size); (tileY + 1) * size <= position[1] + mFrame.height; ++tileY) {
+
+            for (long tileX = floorDiv(position[0] + size - 1, size); (tileX + 1) * size <= position[0] + mFrame.width; ++tileX) {
+                TileCache.Key key = getTileKey(tileX, tileY);
+                boolean cached = mTileCache.contains(key);
+                boolean stored = mTileStore == null || mTileStore.contains(key);
+
+                if (!cached || !stored) {
+                    int[] tile = mFrame.copyTileOut((int)(tileX * size - position[0]), (int)(tileY * size - position[1]), size);
+
+                    if (tile != null) {
+
+                        if (!cached) {
+                            mTileCache.put(key, tile);
+                        }
+
+                        if (!stored) {
+                            mTileStore.put(key, tile);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean constrainView(BigDecimal newViewLeft, BigDecimal newViewTop,
+            double newViewWidth, double newViewHeight, int newZoomExponent) {
+
+        if (newViewWidth > mHomeViewWidth) {
+            newViewWidth = mHomeViewWidth;
+        }
+
+        if (newViewHeight > mHomeViewHeight) {
+            newViewHeight = mHomeViewHeight;
+        }
+
+        BigDecimal defaultLeft = mHomeViewLeft;
+
+        if (newViewLeft.compareTo(defaultLeft) < 0) {
+            newViewLeft = defaultLeft;
+        }
+
+        BigDecimal newViewRight = newViewLeft.add(new BigDecimal(newViewWidth));
+        BigDecimal defaultViewRight = mHomeViewLeft.add(new BigDecimal(mHomeViewWidth));
+
+        if (newViewRight.compareTo(defaultViewRight) > 0) {
+            newViewLeft = defaultViewRight.subtract(new BigDecimal(newViewWidth));
+        }
+
+        BigDecimal defaultTop = mHomeViewTop;
+
+        if (newViewTop.compareTo(defaultTop) > 0) {
+            newViewTop = defaultTop;
+        }
+
+        BigDecimal newViewBottom = newViewTop.subtract(new BigDecimal(newViewHeight));
+        BigDecimal defaultViewBottom = mHomeViewTop.subtract(new BigDecimal(mHomeViewHeight));
+
+        if (newViewBottom.compareTo(defaultViewBottom) < 0) {
+            newViewTop = defaultViewBottom.add(new BigDecimal(newViewHeight));
+        }
+
+        if (newViewLeft.compareTo(mViewLeft) == 0 && newViewTop.compareTo(mViewTop) == 0
+                && newViewWidth == mViewWidth && newViewHeight == mViewHeight) {
+            return false;
+        }
+
+        if (newZoomExponent < 0) {
+            newZoomExponent = 0;
+        }
+
+        mViewLeft = newViewLeft;
+        mViewTop = newViewTop;
+        mViewWidth = newViewWidth;
+        mViewHeight = newViewHeight;
+        mZoomExponent = newZoomExponent;
+        mMaxNumIterationsOverride = 0;
+
+        return true;
+    }
+}
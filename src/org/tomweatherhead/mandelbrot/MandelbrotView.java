@@ -1,12 +1,29 @@
 package org.tomweatherhead.mandelbrot;
 
-import java.util.ArrayList;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 //import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 //import android.graphics.RectF;
 //import android.graphics.drawable.Drawable;
@@ -14,6 +31,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -48,13 +66,42 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
         private static final String KEY_VIEW_WIDTH = "viewWidth";
         private static final String KEY_VIEW_HEIGHT = "viewHeight";
         private static final String KEY_ZOOM_EXPONENT = "zoomExponent";
+        private static final String KEY_MAX_NUM_ITERATIONS = "maxNumIterations";
+        private static final String KEY_JULIA = "julia";
+        private static final String KEY_JULIA_CR = "juliaCr";
+        private static final String KEY_JULIA_CI = "juliaCi";
+        private static final String KEY_MANDELBROT_CENTRE_R = "mandelbrotCentreR";
+        private static final String KEY_MANDELBROT_CENTRE_I = "mandelbrotCentreI";
+        private static final String KEY_MANDELBROT_ZOOM_EXPONENT = "mandelbrotZoomExponent";
+        private static final String KEY_MANDELBROT_MAX_NUM_ITERATIONS = "mandelbrotMaxNumIterations";
+        private static final String KEY_COLOUR_SCHEME = "colourScheme";
+
+        /**
+         * How long the preview of a Julia set may take while the finger
+         * moves, so that the preview, its copy to the bitmap and its drawing
+         * fit in a frame at 60 frames per second
+         */
+        private static final long JULIA_PREVIEW_BUDGET_NANOS = 12000000L;
+
+        /** How long the colours take to go once round the palette while they cycle */
+        private static final long COLOUR_CYCLE_NANOS = 4000000000L;
+
+        /** Devices that give an app at most this much heap, in MB, start with a 16-bit bitmap */
+        private static final int LOW_MEMORY_CLASS_MB = 64;
+
+        /** The width in pixels of an exported poster; the height follows from the view's shape */
+        private static final int POSTER_WIDTH = 16384;
+
         //private static final String KEY_ = "";
 
         /*
          * Member (state) fields
          */
         private Bitmap mMandelbrotBitmap;
-    	private Canvas bitmapCanvas;
+
+        /** The bitmap's pixel format: ARGB_8888, or RGB_565 for half the memory */
+        private Bitmap.Config mBitmapConfig = Bitmap.Config.ARGB_8888;
+
     	private boolean setToDefaultView = true;
     	
     	private Context mContext;
@@ -66,29 +113,67 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
         private int mMode = STATE_READY;
 
         /** Indicate whether the surface has been created & is ready to draw */
-        private boolean mRun = false;
+        private volatile boolean mRun = false;
 
         /** Handle to the surface manager object we interact with */
         private SurfaceHolder mSurfaceHolder;
 
+        /**
+         * Commands from the UI thread, run on this thread between render
+         * slices, so that the UI thread never waits for a render
+         */
+        private final ConcurrentLinkedQueue<Runnable> mCommands = new ConcurrentLinkedQueue<Runnable>();
+
+        /** The current view, for saveState(); replaced by this thread whenever the view changes */
+        private volatile Bundle mSavedView = null;
+
+        /** True to draw the render metrics over the view */
+        private boolean mShowMetrics = false;
+
+        /** True to draw the bitmap again although nothing has been rendered, e.g. to show the metrics */
+        private boolean mRedrawPending = false;
+
+        private final Paint mMetricsPaint = new Paint();
+
+        /**
+         * The latest pixel picked for a Julia set that has not been shown yet,
+         * or null; touch moves replace it, so the previews of the points in
+         * between are dropped, not queued
+         */
+        private final AtomicReference<int[]> mPendingJuliaPixel = new AtomicReference<int[]>();
+
+        /**
+         * True while a pan or pinch gesture is under way: the bitmap is drawn
+         * scaled by mGestureScale and then translated, until the gesture ends
+         * and the new view is rendered
+         */
+        private boolean mGesture = false;
+        private float mGestureScale = 1.0f;
+        private float mGestureTranslateX = 0.0f;
+        private float mGestureTranslateY = 0.0f;
+        private final Matrix mGestureMatrix = new Matrix();
+
+        /**
+         * True while the colours cycle: every frame, the palette is turned a
+         * little and the framebuffer painted again from its escape values
+         */
+        private boolean mColourCycling = false;
+
+        /** The time at which the cycling colours were (or would have been) at offset 0 */
+        private long mColourCycleStartNanos = 0;
+
+        /** The navigation events of this session, for saveSession() */
+        private final SessionRecording mSession = new SessionRecording();
+
+        /** The poster export that is running on a thread of its own, or null */
+        private PosterExporter mPosterExporter = null;
+
         // **** Global Variable Declarations ****
         private int canvasWidthInPixels = 1;
         private int canvasHeightInPixels = 1;
-        private double defaultViewLeft = -2.25;
-        private double defaultViewTop = 1.5;
-        private double defaultViewWidth = 3.0;
-        private double defaultViewHeight = 3.0;
-        private double viewLeft = 0.0;
-        private double viewTop = 0.0;
-        private double viewWidth = 0.0;
-        private double viewHeight = 0.0;
-        private int currentCanvasLeftInPixels = 0;
-        private int currentCanvasTopInPixels = 0;
-        private int currentCanvasWidthInPixels = 0;
-        private double currentWidth = 0.0;
-        private ArrayList<Paint> palette = new ArrayList<Paint>();
-        private int maxRendersPerCall = 512;
-        private int zoomExponent = 0;
+
+        /** Renders the views; everything that does not need Android lives in here */
+        private MandelbrotRenderer mRenderer = new MandelbrotRenderer();
         
         public MandelbrotThread(SurfaceHolder surfaceHolder, Context context,
                 Handler handler) {
@@ -97,122 +182,62 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
             mHandler = handler;
             mContext = context;
 
-            mMandelbrotBitmap = Bitmap.createBitmap(canvasWidthInPixels, canvasHeightInPixels, Bitmap.Config.ARGB_8888);
-        	bitmapCanvas = new Canvas(mMandelbrotBitmap);
-            
-            constructPalette();
+            ActivityManager activityManager = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+
+            if (activityManager != null && activityManager.getMemoryClass() <= LOW_MEMORY_CLASS_MB) {
+            	mBitmapConfig = Bitmap.Config.RGB_565;
+            }
+
+            mMandelbrotBitmap = Bitmap.createBitmap(canvasWidthInPixels, canvasHeightInPixels, mBitmapConfig);
+            mRenderer.setCanvasSize(canvasWidthInPixels, canvasHeightInPixels);
+            saveView();
+
+            mMetricsPaint.setAntiAlias(true);
+            mMetricsPaint.setTextSize(20);
         }
 
         // **** Start of pasted Javascript code ****
 
-        private void fillSquare(int left, int top, int width, int colourIndex) {
-        	bitmapCanvas.drawRect(left, top, left + width, top + width, palette.get(colourIndex));
-        }
+        /** Copies rows top to top + height - 1 of the framebuffer into the bitmap. */
+        private void updateBitmap(int top, int height) {
+        	FrameBuffer frame = mRenderer.getFrame();
 
-        private void calculateAndFillSquare(double cr, double ci,
-        		int canvasSquareLeft, int canvasSquareTop, int canvasSquareWidth)
-        {
-            int maxNumIterations = palette.size() - 1;
-            double zr = cr;
-            double zi = ci;
-            int i = 0;
-
-            for (; i < maxNumIterations; ++i)
-            {
-                double zr2 = zr * zr;
-                double zi2 = zi * zi;
-
-                if (zr2 + zi2 >= 4.0)
-                {
-                    break;
-                }
+        	height = Math.min(height, frame.height - top);
 
-                double tempzr = zr2 - zi2 + cr;
+        	if (height > 0) {
+        		mMandelbrotBitmap.setPixels(frame.pixels, top * frame.width, frame.width,
+        				0, top, frame.width, height);
+        	}
+        }
 
-                zi = 2.0 * zr * zi + ci;
-                zr = tempzr;
-            }
+        /**
+         * Makes the bitmap the canvas size and in mBitmapConfig, keeping the
+         * one there is if it already is; what it shows is left to be drawn
+         * again. The old bitmap's pixels are freed before the new ones are
+         * allocated, so that the two are never held at once.
+         */
+        private void resizeBitmap() {
 
-            fillSquare(canvasSquareLeft, canvasSquareTop, canvasSquareWidth, i);
+        	if (mMandelbrotBitmap.getWidth() == canvasWidthInPixels
+        			&& mMandelbrotBitmap.getHeight() == canvasHeightInPixels
+        			&& mMandelbrotBitmap.getConfig() == mBitmapConfig) {
+        		return;
+        	}
+
+        	mMandelbrotBitmap.recycle();
+        	mMandelbrotBitmap = null;
+        	mMandelbrotBitmap = Bitmap.createBitmap(canvasWidthInPixels, canvasHeightInPixels, mBitmapConfig);
         }
 
         private void renderLoop() {
-            int nextCanvasWidthInPixels = currentCanvasWidthInPixels / 2;
-            double nextWidth = currentWidth / 2.0;
-
-            for (int renderNum = 0; renderNum < maxRendersPerCall; ++renderNum)
-            {
-                double cr = currentCanvasLeftInPixels * viewWidth / canvasWidthInPixels + viewLeft;
-                double ci = viewTop - currentCanvasTopInPixels * viewHeight / canvasHeightInPixels;
-
-                // TAW 2011/05/30 : This next call should be unnecessary if the "progressive scan" algorithm is working properly.
-                //calculateAndFillSquare(cxt, cr, ci,
-                //    currentCanvasLeftInPixels, currentCanvasTopInPixels,
-                //    nextCanvasWidthInPixels);
-
-                calculateAndFillSquare(cr + nextWidth, ci,
-                    currentCanvasLeftInPixels + nextCanvasWidthInPixels, currentCanvasTopInPixels,
-                    nextCanvasWidthInPixels);
-                calculateAndFillSquare(cr, ci - nextWidth,
-                    currentCanvasLeftInPixels, currentCanvasTopInPixels + nextCanvasWidthInPixels,
-                    nextCanvasWidthInPixels);
-                calculateAndFillSquare(cr + nextWidth, ci - nextWidth,
-                    currentCanvasLeftInPixels + nextCanvasWidthInPixels, currentCanvasTopInPixels + nextCanvasWidthInPixels,
-                    nextCanvasWidthInPixels);
-
-                currentCanvasLeftInPixels += currentCanvasWidthInPixels;
-
-                if (currentCanvasLeftInPixels >= canvasWidthInPixels)
-                {
-                    currentCanvasLeftInPixels = 0;
-                    currentCanvasTopInPixels += currentCanvasWidthInPixels;
-
-                    if (currentCanvasTopInPixels >= canvasHeightInPixels)
-                    {
-                        currentCanvasTopInPixels = 0;
-                        currentCanvasWidthInPixels = nextCanvasWidthInPixels;
-                        currentWidth = nextWidth;
-
-                        if (currentCanvasWidthInPixels <= 1)
-                        {
-                            // Rendering is complete.
-                            setState(STATE_DONE);
-                        } else {
-                        	nextCanvasWidthInPixels /= 2;
-                        	nextWidth /= 2.0;
-                        	//break;  // Allow the display of the rendered image at this level of chunkiness.
-                        }
-                        
-                        return;
-                    }
-                }
-            }
-        }
+            boolean complete = mRenderer.renderNextBand();
 
-        private void constructPalette()
-        {
-            palette.clear();
-
-            Paint paint = null;
-            
-            for (int i = 0; i <= 255; i += 5)
-            {
-            	paint = new Paint();
-                paint.setARGB(255, 255, i, 0); 		// Red to Yellow
-                palette.add(paint);
-                
-            	paint = new Paint();
-                paint.setARGB(255, 0, 255, i);   	// Green to Cyan/Aqua
-                palette.add(paint);
-
-            	paint = new Paint();
-                paint.setARGB(255, i, 0, 255);   	// Blue to Magenta/Fuchsia
-                palette.add(paint);
-            }
+            // Push the band that this call has just rendered.
+            updateBitmap(mRenderer.getBandTop(), mRenderer.getBandHeight());
 
-        	paint = new Paint();
-            paint.setARGB(255, 0, 0, 0);     // Pixels within the Mandelbrot Set are coloured Black.
-            palette.add(paint);
+            if (complete) {
+                enterState(STATE_DONE, null);
+            }
         }
 
         private void renderView()
@@ -221,137 +246,419 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
         	if (setToDefaultView) {
         		setToDefaultView = false;
 
-            	if (!constrainView(defaultViewLeft, defaultViewTop, defaultViewWidth, defaultViewHeight, 0)) {
-                	setState(STATE_DONE);	// The default (home) view has already been rendered and is visible. 
+            	if (!mRenderer.goHome()) {
+                	enterState(STATE_DONE, null);	// The default (home) view has already been rendered and is visible. 
             		return;
             	}
         	}
 
-        	setState(STATE_RUNNING);
-        	
-            calculateAndFillSquare(viewLeft, viewTop, 0, 0, canvasWidthInPixels);
-
-            currentCanvasLeftInPixels = 0;
-            currentCanvasTopInPixels = 0;
-            currentCanvasWidthInPixels = canvasWidthInPixels;
-            currentWidth = viewWidth;
+        	enterState(STATE_RUNNING, null);
+            mRenderer.startView();
+            saveView();
+            updateBitmap(0, canvasHeightInPixels);
             renderLoop();
         }
 
-        private boolean constrainView(double newViewLeft, double newViewTop,
-        		double newViewWidth, double newViewHeight, int newZoomExponent) {
+        private void onCanvasClick(int x, int y) {
 
-            if (newViewWidth > defaultViewWidth) {
-                newViewWidth = defaultViewWidth;
-            }
+        	if (x < 0 || x >= canvasWidthInPixels || y < 0 || y >= canvasHeightInPixels) {
+        		return;
+        	}
 
-            if (newViewHeight > defaultViewHeight) {
-                newViewHeight = defaultViewHeight;
+            if (mRenderer.isAtMaxZoom()) {
+            	enterState(STATE_DONE, mContext.getResources().getText(R.string.message_epsilon));
+                return;
             }
 
-            if (newViewLeft < defaultViewLeft) {
-                newViewLeft = defaultViewLeft;
+            if (mRenderer.zoomIn(x, y)) {
+            	enterState(STATE_READY, null);
             }
+        }
 
-            double newViewRight = newViewLeft + newViewWidth;
-            double defaultViewRight = defaultViewLeft + defaultViewWidth;
+        /**
+         * Queues a command to be run on this thread before the next render
+         * slice, and wakes the thread. If the command changes the view, the
+         * band that is being rendered is cancelled, so that the command runs
+         * within a row of squares instead of at the end of the band. May be
+         * called from any thread.
+         */
+        private void post(Runnable command, boolean changesView) {
 
-            if (newViewRight > defaultViewRight) {
-                newViewLeft = defaultViewRight - newViewWidth;
-            }
+        	if (changesView) {
+        		mRenderer.cancel();
+        	}
 
-            if (newViewTop > defaultViewTop) {
-                newViewTop = defaultViewTop;
-            }
+        	mCommands.offer(command);
+        	LockSupport.unpark(this);
+        }
 
-            double newViewBottom = newViewTop - newViewHeight;
-            double defaultViewBottom = defaultViewTop - defaultViewHeight;
+        /** Runs the queued commands, in the order in which they were posted. */
+        private void runCommands() {
+        	Runnable command;
 
-            if (newViewBottom < defaultViewBottom) {
-                newViewTop = defaultViewBottom + newViewHeight;
-            }
+        	while ((command = mCommands.poll()) != null) {
+        		command.run();
+        	}
+        }
 
-            if (newViewLeft == viewLeft && newViewTop == viewTop && newViewWidth == viewWidth && newViewHeight == viewHeight) {
-                return false;
-            }
+        public void goHome() {
+        	mSession.record(SessionRecording.HOME);
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			setToDefaultView = true;
+        			enterState(STATE_READY, null);
+        		}
+        	}, true);
+        }
 
-            if (newZoomExponent < 0) {
-                newZoomExponent = 0;
-            }
+        public void zoomOut() {
+        	mSession.record(SessionRecording.ZOOM_OUT);
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+
+        			if (mRenderer.zoomOut()) {
+        				enterState(STATE_READY, null);
+        			}
+        		}
+        	}, true);
+        }
+
+        /**
+         * Turns boundary tracing (the Mariani-Silver algorithm) on or off, and
+         * renders the current view again.
+         */
+        public void toggleBoundaryTracing() {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			mRenderer.setBoundaryTracing(!mRenderer.isBoundaryTracing());
+        			enterState(STATE_READY, null);
+        		}
+        	}, true);
+        }
 
-            viewLeft = newViewLeft;
-            viewTop = newViewTop;
-            viewWidth = newViewWidth;
-            viewHeight = newViewHeight;
-            zoomExponent = newZoomExponent;
+        /**
+         * Turns distance-estimate guided rendering on or off, and renders the
+         * current view again.
+         */
+        public void toggleDistanceEstimation() {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			mRenderer.setDistanceEstimation(!mRenderer.isDistanceEstimation());
+        			enterState(STATE_READY, null);
+        		}
+        	}, true);
+        }
 
-            return true;
+        /** Turns shading by distance estimate on or off, and renders the current view again. */
+        public void toggleDistanceShading() {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			mRenderer.setDistanceShading(!mRenderer.isDistanceShading());
+        			enterState(STATE_READY, null);
+        		}
+        	}, true);
         }
 
-        private void onCanvasClick(int x, int y) {
-            double cr = (double)x * viewWidth / (double)canvasWidthInPixels + viewLeft;
-            double ci = viewTop - (double)y * viewHeight / (double)canvasHeightInPixels;
+        /** Shows the current view in the next colour scheme, without rendering it again. */
+        public void nextColourScheme() {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			mRenderer.setColourScheme((mRenderer.getColourScheme() + 1) % Palette.NUM_COLOUR_SCHEMES);
+        			updateBitmap(0, mRenderer.getFrame().height);
+        			mRedrawPending = true;
+        			saveView();
+        		}
+        	}, false);
+        }
 
-            double newViewWidth = viewWidth / 2.0;
-            double newViewHeight = viewHeight / 2.0;
+        /**
+         * Switches the bitmap between 32-bit (ARGB_8888) and 16-bit (RGB_565)
+         * colour; 16-bit colour halves the bitmap's memory, at the cost of
+         * some banding. The framebuffer is copied into the new bitmap, so
+         * nothing is rendered again.
+         */
+        public void toggle16BitColour() {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			mBitmapConfig = mBitmapConfig == Bitmap.Config.RGB_565
+        					? Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+        			resizeBitmap();
+        			updateBitmap(0, mRenderer.getFrame().height);
+        			mRedrawPending = true;
+        		}
+        	}, false);
+        }
 
-            //if (newViewWidth <= 0.0 || newViewHeight <= 0.0) {
-            if (zoomExponent >= 50) {
-            	setState(STATE_DONE, mContext.getResources().getText(R.string.message_epsilon));
-                return;
-            }
+        /** Starts or stops cycling the colours; they stop where they are. */
+        public void toggleColourCycling() {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			mColourCycling = !mColourCycling;
+
+        			if (mColourCycling) {
+        				// Carry on from the current offset.
+        				mColourCycleStartNanos = System.nanoTime()
+        						- mRenderer.getColourCycleOffset() * COLOUR_CYCLE_NANOS / Palette.CYCLE_LENGTH;
+        			}
+        		}
+        	}, false);
+        }
 
-            double newViewLeft = cr - newViewWidth / 2.0;
-            double newViewTop = ci + newViewHeight / 2.0;
+        /** Turns the colours for the time now, and copies the repainted framebuffer into the bitmap. */
+        private void cycleColours() {
+        	long phase = (System.nanoTime() - mColourCycleStartNanos) % COLOUR_CYCLE_NANOS;
 
-            if (constrainView(newViewLeft, newViewTop, newViewWidth, newViewHeight, zoomExponent + 1)) {
-            	setState(STATE_READY);
-            }
+        	mRenderer.setColourCycleOffset((int)(phase * Palette.CYCLE_LENGTH / COLOUR_CYCLE_NANOS));
+        	updateBitmap(0, mRenderer.getFrame().height);
         }
 
-        public void goHome() {
-            synchronized (mSurfaceHolder) {
-            	setToDefaultView = true;
-            	setState(STATE_READY);
-            }
+        /**
+         * Multiplies the current view's iteration limit by factor (e.g. 2 or
+         * 0.5), and renders the view again. The limit goes back to the one for
+         * the zoom level when the view changes.
+         */
+        public void scaleMaxNumIterations(final double factor) {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			int maxNumIterations = (int)(mRenderer.getMaxNumIterations() * factor);
+
+        			mRenderer.setMaxNumIterations(Math.max(maxNumIterations, 16));
+        			enterState(STATE_READY, null);
+        		}
+        	}, true);
         }
-        
-        public void zoomOut() {
-            synchronized (mSurfaceHolder) {
-            	double cr = viewLeft + viewWidth / 2.0;
-            	double ci = viewTop - viewHeight / 2.0;
 
-            	double newViewWidth = viewWidth * 2.0;
-            	double newViewHeight = viewHeight * 2.0;
-            	double newViewLeft = cr - newViewWidth / 2.0;
-            	double newViewTop = ci + newViewHeight / 2.0;
+        public TileCache getTileCache() {
+            return mRenderer.getTileCache();
+        }
 
-            	if (constrainView(newViewLeft, newViewTop, newViewWidth, newViewHeight, zoomExponent - 1)) {
-            		setState(STATE_READY);
-            	}
+        /**
+         * Opens the store that keeps the tiles of finished views on disk, in
+         * directory, so that they outlive the process. The files are opened on
+         * this thread; if they cannot be, tiles are kept in memory only.
+         */
+        public void openTileStore(final File directory) {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			try {
+        				mRenderer.setTileStore(new TileStore(directory, MandelbrotRenderer.DEFAULT_TILE_STORE_BYTES));
+        			} catch (IOException e) {
+        				Log.w(MandelbrotView.class.getName(), "Cannot open the tile store", e);
+        			}
+        		}
+        	}, false);
+        }
+
+        /**
+         * Gives memory back when the system is running low; level is one of the
+         * ComponentCallbacks2.TRIM_MEMORY_* constants. The tile cache is
+         * thread-safe, so this is done on the calling thread.
+         */
+        public void trimMemory(int level) {
+            TileCache tileCache = mRenderer.getTileCache();
+
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+            		|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            	tileCache.clear();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            	tileCache.trimToSize(tileCache.getMaxBytes() / 2);
             }
         }
-        
+
+        /** Shows or hides the render metrics over the view. */
+        public void toggleMetrics() {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			mShowMetrics = !mShowMetrics;
+        			mRedrawPending = true;
+        		}
+        	}, false);
+        }
+
+        /** Writes the render metrics to file as JSON, for collection from the field. */
+        public void saveMetrics(final File file) {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			try {
+        				Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+        				try {
+        					writer.write(mRenderer.getMetrics().toJson());
+        				} finally {
+        					writer.close();
+        				}
+
+        				Log.i(MandelbrotView.class.getName(), "Render metrics saved to " + file);
+        			} catch (IOException e) {
+        				Log.w(MandelbrotView.class.getName(), "Cannot save the render metrics to " + file, e);
+        			}
+        		}
+        	}, false);
+        }
+
+        /**
+         * Writes the navigation events of this session so far to file, e.g.
+         * to replay them with the SessionReplay benchmark.
+         */
+        public void saveSession(final File file) {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			try {
+        				Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+        				try {
+        					mSession.write(writer);
+        				} finally {
+        					writer.close();
+        				}
+
+        				Log.i(MandelbrotView.class.getName(), "Session saved to " + file);
+        			} catch (IOException e) {
+        				Log.w(MandelbrotView.class.getName(), "Cannot save the session to " + file, e);
+        			}
+        		}
+        	}, false);
+        }
+
+        /**
+         * Renders the current view as a POSTER_WIDTH pixel wide PNG image into
+         * file, on a thread of its own so that the view can still be explored.
+         * If an export is running, it is cancelled instead. The progress is
+         * shown in the status text.
+         */
+        public void exportPoster(final File file) {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			if (mPosterExporter != null) {
+        				mPosterExporter.cancel();
+        				return;
+        			}
+
+        			final int width = POSTER_WIDTH;
+        			final int height = Math.max(1,
+        					(int)Math.round(width * mRenderer.getViewHeight() / mRenderer.getViewWidth()));
+        			final EscapeTimeKernel kernel = mRenderer.createKernel(width, height);
+        			final Palette palette = new Palette(mRenderer.getMaxNumIterations(), false,
+        					mRenderer.getColourScheme(), mRenderer.getColourCycleOffset());
+        			final ParallelRenderer parallelRenderer = new ParallelRenderer();
+        			final PosterExporter exporter = new PosterExporter(parallelRenderer);
+
+        			mPosterExporter = exporter;
+        			new Thread("MandelbrotPosterExport") {
+        				@Override
+        				public void run() {
+        					exportPoster(exporter, kernel, palette, width, height, file);
+        					parallelRenderer.shutdown();
+        					post(new Runnable() {
+        						@Override
+        						public void run() {
+        							mPosterExporter = null;
+        						}
+        					}, false);
+        				}
+        			}.start();
+        		}
+        	}, false);
+        }
+
+        /** Runs a poster export; called on the export's own thread. */
+        private void exportPoster(PosterExporter exporter, EscapeTimeKernel kernel, Palette palette,
+        		final int width, int height, File file) {
+        	final Resources res = mContext.getResources();
+        	boolean done = false;
+
+        	try {
+        		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+
+        		try {
+        			done = exporter.export(kernel, palette, width, height, out, new PosterExporter.ProgressListener() {
+        				@Override
+        				public void onProgress(int rowsDone, int height, long elapsedNanos) {
+        					showMessage(String.format(Locale.US, "%s %d%%  %.1f Mpixel/s",
+        							res.getText(R.string.message_exporting), 100L * rowsDone / height,
+        							(double)rowsDone * width * 1.0e3 / elapsedNanos));
+        				}
+        			});
+        		} finally {
+        			out.close();
+        		}
+        	} catch (IOException e) {
+        		Log.w(MandelbrotView.class.getName(), "Cannot export the poster to " + file, e);
+        	}
+
+        	if (done) {
+        		showMessage(res.getText(R.string.message_exported) + " " + file);
+        	} else {
+        		file.delete();
+        		showMessage(res.getText(R.string.message_export_failed));
+        	}
+        }
+
         // **** End of pasted Javascript code ****
 
         /**
          * Pauses the physics update & animation.
          */
         public void pause() {
-            synchronized (mSurfaceHolder) {
-                if (mMode == STATE_RUNNING) {
-                	setState(STATE_PAUSE /*, mContext.getResources().getText(R.string.message_paused) */ );
-                }
-            }
+        	mSession.record(SessionRecording.PAUSE);
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			if (mMode == STATE_RUNNING) {
+        				enterState(STATE_PAUSE, mContext.getResources().getText(R.string.message_paused));
+        			}
+        		}
+        	}, false);
         }
 
         /**
          * Resumes from a pause.
          */
         public void unpause() {
+        	mSession.record(SessionRecording.RESUME);
             setState(STATE_RUNNING);
         }
 
+        /** Publishes the current view for saveState(). */
+        private void saveView() {
+        	Bundle map = new Bundle();
+
+        	map.putString(KEY_VIEW_LEFT, mRenderer.getViewLeft().toString());
+        	map.putString(KEY_VIEW_TOP, mRenderer.getViewTop().toString());
+        	map.putDouble(KEY_VIEW_WIDTH, Double.valueOf(mRenderer.getViewWidth()));
+        	map.putDouble(KEY_VIEW_HEIGHT, Double.valueOf(mRenderer.getViewHeight()));
+        	map.putInt(KEY_ZOOM_EXPONENT, Integer.valueOf(mRenderer.getZoomExponent()));
+        	map.putInt(KEY_MAX_NUM_ITERATIONS, Integer.valueOf(mRenderer.getMaxNumIterationsOverride()));
+        	map.putBoolean(KEY_JULIA, mRenderer.isJulia());
+        	map.putDouble(KEY_JULIA_CR, mRenderer.getJuliaCr());
+        	map.putDouble(KEY_JULIA_CI, mRenderer.getJuliaCi());
+
+        	if (mRenderer.isJulia()) {
+        		// The Mandelbrot set view to go back to
+        		map.putString(KEY_MANDELBROT_CENTRE_R, mRenderer.getMandelbrotCentreR().toString());
+        		map.putString(KEY_MANDELBROT_CENTRE_I, mRenderer.getMandelbrotCentreI().toString());
+        		map.putInt(KEY_MANDELBROT_ZOOM_EXPONENT, mRenderer.getMandelbrotZoomExponent());
+        		map.putInt(KEY_MANDELBROT_MAX_NUM_ITERATIONS, mRenderer.getMandelbrotMaxNumIterationsOverride());
+        	}
+
+        	map.putInt(KEY_COLOUR_SCHEME, mRenderer.getColourScheme());
+        	mSavedView = map;
+        }
+
         /**
          * Dump game state to the provided Bundle. Typically called when the
          * Activity is being suspended.
@@ -359,15 +666,12 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
          * @return Bundle with this view's state
          */
         public Bundle saveState(Bundle map) {
-            synchronized (mSurfaceHolder) {
-                if (map != null) {
-                    map.putDouble(KEY_VIEW_LEFT, Double.valueOf(viewLeft));
-                    map.putDouble(KEY_VIEW_TOP, Double.valueOf(viewTop));
-                    map.putDouble(KEY_VIEW_WIDTH, Double.valueOf(viewWidth));
-                    map.putDouble(KEY_VIEW_HEIGHT, Double.valueOf(viewHeight));
-                    map.putInt(KEY_ZOOM_EXPONENT, Integer.valueOf(zoomExponent));
-                }
-            }
+        	Bundle savedView = mSavedView;
+
+        	if (map != null && savedView != null) {
+        		map.putAll(savedView);
+        	}
+
             return map;
         }
 
@@ -378,33 +682,95 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
          *
          * @param savedState Bundle containing the game state
          */
-        public synchronized void restoreState(Bundle savedState) {
-            synchronized (mSurfaceHolder) {
-                setState(STATE_PAUSE);
-        		setToDefaultView = false;
-        		viewLeft = savedState.getDouble(KEY_VIEW_LEFT);
-        		viewTop = savedState.getDouble(KEY_VIEW_TOP);
-        		viewWidth = savedState.getDouble(KEY_VIEW_WIDTH);
-        		viewHeight = savedState.getDouble(KEY_VIEW_HEIGHT);
-        		zoomExponent = savedState.getInt(KEY_ZOOM_EXPONENT);
-            }
+        public void restoreState(final Bundle savedState) {
+
+        	if (savedState.getBoolean(KEY_JULIA) && savedState.getString(KEY_MANDELBROT_CENTRE_R) != null) {
+        		mSession.record(SessionRecording.VIEW, savedState.getString(KEY_VIEW_LEFT),
+        				savedState.getString(KEY_VIEW_TOP), savedState.getDouble(KEY_VIEW_WIDTH),
+        				savedState.getDouble(KEY_VIEW_HEIGHT), savedState.getInt(KEY_ZOOM_EXPONENT),
+        				savedState.getInt(KEY_MAX_NUM_ITERATIONS), savedState.getDouble(KEY_JULIA_CR),
+        				savedState.getDouble(KEY_JULIA_CI), savedState.getString(KEY_MANDELBROT_CENTRE_R),
+        				savedState.getString(KEY_MANDELBROT_CENTRE_I), savedState.getInt(KEY_MANDELBROT_ZOOM_EXPONENT),
+        				savedState.getInt(KEY_MANDELBROT_MAX_NUM_ITERATIONS));
+        	} else {
+        		mSession.record(SessionRecording.VIEW, savedState.getString(KEY_VIEW_LEFT),
+        				savedState.getString(KEY_VIEW_TOP), savedState.getDouble(KEY_VIEW_WIDTH),
+        				savedState.getDouble(KEY_VIEW_HEIGHT), savedState.getInt(KEY_ZOOM_EXPONENT),
+        				savedState.getInt(KEY_MAX_NUM_ITERATIONS));
+        	}
+
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			enterState(STATE_PAUSE, mContext.getResources().getText(R.string.message_paused));
+        			setToDefaultView = false;
+
+        			if (savedState.getBoolean(KEY_JULIA)) {
+        				mRenderer.setJulia(savedState.getDouble(KEY_JULIA_CR), savedState.getDouble(KEY_JULIA_CI));
+
+        				if (savedState.getString(KEY_MANDELBROT_CENTRE_R) != null) {
+        					mRenderer.setMandelbrotView(new BigDecimal(savedState.getString(KEY_MANDELBROT_CENTRE_R)),
+        							new BigDecimal(savedState.getString(KEY_MANDELBROT_CENTRE_I)),
+        							savedState.getInt(KEY_MANDELBROT_ZOOM_EXPONENT),
+        							savedState.getInt(KEY_MANDELBROT_MAX_NUM_ITERATIONS));
+        				}
+        			}
+
+        			mRenderer.setColourScheme(savedState.getInt(KEY_COLOUR_SCHEME));
+        			mRenderer.setView(new BigDecimal(savedState.getString(KEY_VIEW_LEFT)),
+        					new BigDecimal(savedState.getString(KEY_VIEW_TOP)),
+        					savedState.getDouble(KEY_VIEW_WIDTH), savedState.getDouble(KEY_VIEW_HEIGHT),
+        					savedState.getInt(KEY_ZOOM_EXPONENT), savedState.getInt(KEY_MAX_NUM_ITERATIONS));
+        			saveView();
+        		}
+        	}, true);
         }
 
+        /**
+         * Runs the queued commands, then renders a band, and draws the bitmap
+         * after each band. When there is nothing to render (the view is done,
+         * or rendering is paused) the thread parks until a command is posted,
+         * unless the colours are cycling, when it draws every frame.
+         */
         @Override
         public void run() {
             while (mRun) {
+            	runCommands();
+
+            	if (mRedrawPending) {
+            		// Show what is there (e.g. a Julia set preview) before rendering any more.
+            	} else if (mMode == STATE_READY) {
+            		renderView();
+            	} else if (mMode == STATE_RUNNING) {
+            		renderLoop();
+            	} else if (mColourCycling) {
+            		// Nothing to render, but the colours move on.
+            	} else {
+            		// post() unparks the thread after queueing its command, so no command is missed.
+            		if (mCommands.isEmpty()) {
+            			LockSupport.park(this);
+            		}
+
+            		continue;
+            	}
+
+            	mRedrawPending = false;
+
+            	if (mColourCycling) {
+            		cycleColours();
+            	}
+
                 Canvas c = null;
                 try {
+                	long lockStart = System.nanoTime();
+
                     c = mSurfaceHolder.lockCanvas(null);
-                    synchronized (mSurfaceHolder) {
-          
-                    	if (mMode == STATE_READY) {
-                    		renderView();
-                    	} else if (mMode == STATE_RUNNING) {
-                    		renderLoop();
-                    	}
+
+                    if (c != null) {
+                    	long drawStart = System.nanoTime();
 
                     	doDraw(c);
+                    	mRenderer.getMetrics().addFrame(drawStart - lockStart, System.nanoTime() - drawStart);
                     }
                 } finally {
                     // do this in a finally so that if an exception is thrown
@@ -415,6 +781,8 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
                     }
                 }
             }
+
+            mRenderer.shutdown();
         }
 
         /**
@@ -427,6 +795,11 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
          */
         public void setRunning(boolean b) {
             mRun = b;
+
+            if (!b) {
+            	mRenderer.cancel();
+            	LockSupport.unpark(this);
+            }
         }
 
         /**
@@ -437,25 +810,34 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
          * @param mode one of the STATE_* constants
          */
         public void setState(int mode) {
-            synchronized (mSurfaceHolder) {
-            	CharSequence message = null;
-            	
-            	if (mode == STATE_PAUSE) {
-            		message = mContext.getResources().getText(R.string.message_paused);
-            	}
-            	
-                setState(mode, message);
-            }
+        	CharSequence message = null;
+
+        	if (mode == STATE_PAUSE) {
+        		message = mContext.getResources().getText(R.string.message_paused);
+        	}
+
+        	setState(mode, message);
         }
 
         /**
          * Sets the game mode. That is, whether we are running, paused, in the
-         * failure state, in the victory state, etc.
+         * failure state, in the victory state, etc. The mode is changed on
+         * this thread, before the next render slice.
          *
          * @param mode one of the STATE_* constants
          * @param message string to add to screen or null
          */
-        public void setState(int mode, CharSequence message) {
+        public void setState(final int mode, final CharSequence message) {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			enterState(mode, message);
+        		}
+        	}, mode == STATE_READY);
+        }
+
+        /** Changes the mode; called on this thread only. */
+        private void enterState(int mode, CharSequence message) {
             /*
              * This method optionally can cause a text message to be displayed
              * to the user when the mode changes. Since the View that actually
@@ -464,55 +846,66 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
              * Instead we use a Message + Handler to relay commands to the main
              * thread, which updates the user-text View.
              */
-            synchronized (mSurfaceHolder) {
-                mMode = mode;
-
-                Message msg = mHandler.obtainMessage();
-                Bundle b = new Bundle();
-                Resources res = mContext.getResources();
-                CharSequence str = "";
-
-                if (message != null) {
-                    str = message;
-                } else {
-                	str = res.getText(R.string.message_zoom) + " " + Integer.toString(zoomExponent);
-                }
-                
-                b.putString("text", str.toString());
-                b.putInt("viz", View.VISIBLE);
-                msg.setData(b);
-                mHandler.sendMessage(msg);
+            mMode = mode;
+
+            Resources res = mContext.getResources();
+            CharSequence str = "";
+
+            if (message != null) {
+                str = message;
+            } else {
+            	str = res.getText(R.string.message_zoom) + " " + Integer.toString(mRenderer.getZoomExponent());
+
+            	if (mRenderer.isJulia()) {
+            		str = String.format(Locale.US, "%s %.6f %+.6fi; %s", res.getText(R.string.message_julia),
+            				mRenderer.getJuliaCr(), mRenderer.getJuliaCi(), str);
+            	}
             }
+
+            showMessage(str);
         }
 
-        /* Callback invoked when the surface dimensions change. */
-        public void setSurfaceSize(int width, int height) {
-            // synchronized to make sure these all change atomically
-            synchronized (mSurfaceHolder) {
-            	/*
-            	int constraint = width;
-            	
-            	if (height < constraint) {
-            		constraint = height;
-            	}
-            	
-            	int powerOf2 = 1;
-            	
-            	while (powerOf2 * 2 <= constraint) {
-            		powerOf2 *= 2;
-            	}
-            	*/
+        /** Shows message in the status text; may be called from any thread. */
+        private void showMessage(CharSequence message) {
+            Message msg = mHandler.obtainMessage();
+            Bundle b = new Bundle();
 
-                canvasWidthInPixels = width;	//powerOf2;
-                canvasHeightInPixels = height;	//powerOf2;
-                
-                mMandelbrotBitmap = Bitmap.createScaledBitmap(
-                		mMandelbrotBitmap, canvasWidthInPixels, canvasHeightInPixels, false);
-            	bitmapCanvas = new Canvas(mMandelbrotBitmap);
+            b.putString("text", message.toString());
+            b.putInt("viz", View.VISIBLE);
+            msg.setData(b);
+            mHandler.sendMessage(msg);
+        }
 
-                // Restart the rendering.
-                setState(STATE_READY);
-            }
+        /* Callback invoked when the surface dimensions change. */
+        public void setSurfaceSize(final int width, final int height) {
+        	mSession.record(SessionRecording.SIZE, width, height);
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			/*
+        			int constraint = width;
+
+        			if (height < constraint) {
+        				constraint = height;
+        			}
+
+        			int powerOf2 = 1;
+
+        			while (powerOf2 * 2 <= constraint) {
+        				powerOf2 *= 2;
+        			}
+        			*/
+
+        			canvasWidthInPixels = width;	//powerOf2;
+        			canvasHeightInPixels = height;	//powerOf2;
+
+        			resizeBitmap();
+        			mRenderer.setCanvasSize(canvasWidthInPixels, canvasHeightInPixels);
+
+        			// Restart the rendering.
+        			enterState(STATE_READY, null);
+        		}
+        	}, true);
         }
 
         /**
@@ -523,31 +916,65 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
          * @return true
          */
         boolean doKeyDown(int keyCode, KeyEvent msg) {
-            synchronized (mSurfaceHolder) {
-                boolean okStart = false;
-                if (keyCode == KeyEvent.KEYCODE_DPAD_UP) okStart = true;
-                if (keyCode == KeyEvent.KEYCODE_DPAD_DOWN) okStart = true;
-                if (keyCode == KeyEvent.KEYCODE_S) okStart = true;
-
-                if (mMode == STATE_PAUSE && okStart) {
-                    // paused -> running
-                    unpause();
-                    return true;
-                } else if (keyCode == KeyEvent.KEYCODE_H) {		// Home (default view)
-                	goHome();
-                    return true;
-                } else if (keyCode == KeyEvent.KEYCODE_O) {		// Zoom out
-                	zoomOut();
-                    return true;
-                } else if (mMode == STATE_RUNNING) {
-                    if (keyCode == KeyEvent.KEYCODE_DPAD_UP || keyCode == KeyEvent.KEYCODE_P) {
-                        pause();
-                        return true;
-                    }
-                }
-
-                return false;
+            boolean okStart = false;
+            if (keyCode == KeyEvent.KEYCODE_DPAD_UP) okStart = true;
+            if (keyCode == KeyEvent.KEYCODE_DPAD_DOWN) okStart = true;
+            if (keyCode == KeyEvent.KEYCODE_S) okStart = true;
+
+            if (okStart) {
+                // paused -> running, or running -> paused; decided on the render thread
+            	final boolean pauseKey = keyCode == KeyEvent.KEYCODE_DPAD_UP;
+
+            	post(new Runnable() {
+            		@Override
+            		public void run() {
+            			if (mMode == STATE_PAUSE) {
+            				enterState(STATE_RUNNING, null);
+            			} else if (mMode == STATE_RUNNING && pauseKey) {
+            				enterState(STATE_PAUSE, mContext.getResources().getText(R.string.message_paused));
+            			}
+            		}
+            	}, false);
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_H) {		// Home (default view)
+            	goHome();
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_O) {		// Zoom out
+            	zoomOut();
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_B) {		// Boundary tracing on/off
+            	toggleBoundaryTracing();
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_D) {		// Distance estimation on/off
+            	toggleDistanceEstimation();
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_C) {		// Shading by distance on/off
+            	toggleDistanceShading();
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_I) {		// More iterations
+            	scaleMaxNumIterations(2.0);
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_U) {		// Fewer iterations
+            	scaleMaxNumIterations(0.5);
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_J) {		// Back from a Julia set to the Mandelbrot set
+            	showMandelbrot();
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_K) {		// Next colour scheme
+            	nextColourScheme();
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_A) {		// Colour cycling on/off
+            	toggleColourCycling();
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_M) {		// Metrics on/off
+            	toggleMetrics();
+                return true;
+            } else if (keyCode == KeyEvent.KEYCODE_P) {		// Pause
+            	pause();
+                return true;
             }
+
+            return false;
         }
 
         /**
@@ -555,18 +982,146 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
          * Canvas.
          */
         private void doDraw(Canvas canvas) {
-            canvas.drawBitmap(mMandelbrotBitmap, 0, 0, null);
+
+        	if (mGesture) {
+        		mGestureMatrix.reset();
+        		mGestureMatrix.postScale(mGestureScale, mGestureScale);
+        		mGestureMatrix.postTranslate(mGestureTranslateX, mGestureTranslateY);
+        		canvas.drawColor(Color.BLACK);
+        		canvas.drawBitmap(mMandelbrotBitmap, mGestureMatrix, null);
+        	} else {
+        		canvas.drawBitmap(mMandelbrotBitmap, 0, 0, null);
+        	}
+
+            if (mShowMetrics) {
+            	drawMetrics(canvas);
+            }
         }
 
-        public void doTouchDown(int x, int y) {
-        	
-        	if (x < 0 || x >= canvasWidthInPixels || y < 0 || y >= canvasHeightInPixels) {
+        /** Draws the render metrics' summary in the top-left corner, on a dark band. */
+        private void drawMetrics(Canvas canvas) {
+        	List<String> lines = mRenderer.getMetrics().getSummary();
+        	float lineHeight = mMetricsPaint.getTextSize() * 1.25f;
+
+        	mMetricsPaint.setARGB(160, 0, 0, 0);
+        	canvas.drawRect(0, 0, canvasWidthInPixels, lineHeight * lines.size() + lineHeight / 2, mMetricsPaint);
+        	mMetricsPaint.setARGB(255, 255, 255, 255);
+
+        	for (int i = 0; i < lines.size(); ++i) {
+        		canvas.drawText(lines.get(i), lineHeight / 4, lineHeight * (i + 1), mMetricsPaint);
+        	}
+        }
+
+        public void doTouchDown(final int x, final int y) {
+        	mSession.record(SessionRecording.TAP, x, y);
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			onCanvasClick(x, y);
+        		}
+        	}, true);
+        }
+
+        /**
+         * Shows the view as it would be after a pan or pinch gesture so far,
+         * by drawing the bitmap scaled by scale and then translated by
+         * (translateX, translateY) pixels; nothing is rendered. The band that
+         * is being rendered is not cancelled, since the view has not changed.
+         */
+        public void showGesture(final float scale, final float translateX, final float translateY) {
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			mGesture = true;
+        			mGestureScale = scale;
+        			mGestureTranslateX = translateX;
+        			mGestureTranslateY = translateY;
+        			mRedrawPending = true;
+        		}
+        	}, false);
+        }
+
+        /**
+         * Ends a pan or pinch gesture that left the bitmap transformed as by
+         * showGesture(), and renders the view that it shows. The scale is
+         * rounded to a power of 2, and the translation to whole pixels, so
+         * that the pixels of the current view that stay in sight are kept: a
+         * pan calculates only the strips that it uncovers.
+         */
+        public void endGesture(final float scale, final float translateX, final float translateY) {
+        	mSession.record(SessionRecording.MOVE, scale, translateX, translateY);
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			// Keep the point that is drawn at the centre of the canvas there.
+        			double centreX = canvasWidthInPixels / 2.0;
+        			double centreY = canvasHeightInPixels / 2.0;
+        			int zoomSteps = (int)Math.round(Math.log(scale) / Math.log(2.0));
+
+        			mGesture = false;
+
+        			if (mRenderer.moveView((centreX - translateX) / scale, (centreY - translateY) / scale,
+        					centreX, centreY, zoomSteps)) {
+        				enterState(STATE_READY, null);
+        			} else {
+        				mRedrawPending = true;
+        			}
+        		}
+        	}, true);
+        }
+
+        /**
+         * Shows the Julia set of the point at pixel (x, y) of the Mandelbrot
+         * set view (the current one, or the one that Julia set mode was
+         * entered from), e.g. as a finger moves over it. A preview at a lower
+         * resolution is drawn within about JULIA_PREVIEW_BUDGET_NANOS, and is
+         * refined once no more points come. If points come faster than they
+         * can be shown, only the latest one is.
+         */
+        public void showJulia(int x, int y) {
+        	mSession.record(SessionRecording.JULIA, x, y);
+
+        	if (mPendingJuliaPixel.getAndSet(new int[] { x, y }) != null) {
+        		// The command that is queued will pick up this point.
+        		mRenderer.cancel();
         		return;
         	}
-        	
-            synchronized (mSurfaceHolder) {
-            	onCanvasClick(x, y);
-            }
+
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+        			int[] pixel = mPendingJuliaPixel.getAndSet(null);
+
+        			if (pixel == null) {
+        				return;
+        			}
+
+        			double[] c = mRenderer.getMandelbrotPoint(pixel[0], pixel[1]);
+
+        			mRenderer.setJulia(c[0], c[1]);
+        			setToDefaultView = false;
+        			mRenderer.startView();
+        			mRenderer.renderPreview(JULIA_PREVIEW_BUDGET_NANOS);
+        			saveView();
+        			updateBitmap(0, canvasHeightInPixels);
+        			enterState(STATE_RUNNING, null);
+        			mRedrawPending = true;
+        		}
+        	}, true);
+        }
+
+        /** Goes back from a Julia set to the Mandelbrot set view that it was picked from. */
+        public void showMandelbrot() {
+        	mSession.record(SessionRecording.MANDELBROT);
+        	post(new Runnable() {
+        		@Override
+        		public void run() {
+
+        			if (mRenderer.exitJulia()) {
+        				enterState(STATE_READY, null);
+        			}
+        		}
+        	}, true);
         }
     }
 
@@ -702,6 +1257,36 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
     	thread.doTouchDown(x - location[0], y - location[1]);
     }
 
+    /** Shows the Julia set of the point under (x, y), in screen coordinates as for doTouchDown(). */
+    public void doJuliaTouch(int x, int y) {
+    	int location[] = new int[2];
+
+    	getLocationOnScreen(location);
+    	thread.showJulia(x - location[0], y - location[1]);
+    }
+
+    /**
+     * Shows the view transformed by a pan or pinch gesture so far: scaled by
+     * scale, then translated by (translateX, translateY), in screen
+     * coordinates as for doTouchDown().
+     */
+    public void doGesture(float scale, float translateX, float translateY) {
+    	int location[] = new int[2];
+
+    	getLocationOnScreen(location);
+    	thread.showGesture(scale, translateX + (scale - 1.0f) * location[0],
+    			translateY + (scale - 1.0f) * location[1]);
+    }
+
+    /** Ends a pan or pinch gesture, and renders the view that it leads to; see doGesture(). */
+    public void endGesture(float scale, float translateX, float translateY) {
+    	int location[] = new int[2];
+
+    	getLocationOnScreen(location);
+    	thread.endGesture(scale, translateX + (scale - 1.0f) * location[0],
+    			translateY + (scale - 1.0f) * location[1]);
+    }
+
     @Override 
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
     	/*
@@ -718,18 +1303,7 @@ class MandelbrotView extends SurfaceView implements SurfaceHolder.Callback {
     	
     	parentHeight -= topMargin + lastStatusTextHeight + lastHomeButtonHeight;
 
-  		int constraint = parentWidth;
-	
-  		if (parentHeight < constraint) {
-       		constraint = parentHeight;
-       	}
-   	
-       	int powerOf2 = 1;
-   	
-       	while (powerOf2 * 2 <= constraint) {
-       		powerOf2 *= 2;
-       	}
-
-       	this.setMeasuredDimension(powerOf2, powerOf2);
+    	// The renderer covers a canvas of any width and height, so take all of the space.
+       	this.setMeasuredDimension(parentWidth, Math.max(1, parentHeight));
     }
 }
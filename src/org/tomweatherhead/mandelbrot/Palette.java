@@ -0,0 +1,198 @@
+package org.tomweatherhead.mandelbrot;
+
+/**
+ * Maps escape values (see MandelbrotKernel.escapeValue()) to colours.
+ *
+ * The colours come from a lookup table that goes once round the colour
+ * wheel (red, yellow, green, cyan, blue, magenta) every ITERATIONS_PER_CYCLE
+ * iterations, with an entry for each fraction of an iteration, and repeats
+ * for higher counts. Its size does not depend on the iteration limit, so a
+ * limit of thousands of iterations costs no more memory or time per pixel
+ * than a limit of a hundred.
+ *
+ * There is a table for each colour scheme, made once. A palette can be
+ * turned by a cycle offset, which shifts the escape values along the table,
+ * so that the colours of a finished view can be cycled, or the scheme
+ * changed, by painting its pixels again from their escape values (see
+ * FrameBuffer.repaint()) without iterating any point again.
+ *
+ * A palette that shades by distance darkens the pixels that are within
+ * SHADE_DISTANCE pixels of the set, going by their exterior distance
+ * estimates, so that filaments thinner than a pixel, which escape-time
+ * colouring loses among their neighbours, show as dark lines.
+ *
+ * This class has no Android dependencies. It is immutable.
+ */
+final class Palette {
+    /** The number of iterations over which the colours go once round the colour wheel */
+    private static final int ITERATIONS_PER_CYCLE = 64;
+
+    /** The colour of the points in the set */
+    static final int INSIDE_COLOUR = argb(255, 0, 0, 0);
+
+    /** The number of entries in each colour table, one per fraction of an iteration; a power of 2 */
+    static final int CYCLE_LENGTH = ITERATIONS_PER_CYCLE << MandelbrotKernel.FRACTION_BITS;
+
+    private static final int COLOUR_INDEX_MASK = CYCLE_LENGTH - 1;
+
+    /* The colour schemes */
+    static final int SCHEME_RAINBOW = 0;
+    static final int SCHEME_FIRE = 1;
+    static final int SCHEME_OCEAN = 2;
+    static final int SCHEME_GREYSCALE = 3;
+    static final int NUM_COLOUR_SCHEMES = 4;
+
+    /** The colours of one cycle of each scheme, indexed by SCHEME_* */
+    private static final int[][] COLOUR_TABLES = {
+        constructColourWheel(CYCLE_LENGTH),
+        constructGradient(CYCLE_LENGTH, new int[] { 0x000000, 0xff0000, 0xffff00, 0xffffff, 0xffff00, 0xff0000 }),
+        constructGradient(CYCLE_LENGTH, new int[] { 0x000020, 0x0040c0, 0x00c0ff, 0xffffff, 0x00c0ff, 0x0040c0 }),
+        constructGradient(CYCLE_LENGTH, new int[] { 0x000000, 0xffffff })
+    };
+
+    /** The distance from the set, in pixels, within which pixels are shaded */
+    static final float SHADE_DISTANCE = 4.0f;
+
+    private final int mMaxNumIterations;
+    private final int mInsideValue;
+    private final boolean mShadingByDistance;
+    private final int mColourScheme;
+    private final int[] mColours;
+
+    /** The number of table entries by which the colours are turned, from 0 to CYCLE_LENGTH - 1 */
+    private final int mCycleOffset;
+
+    public Palette(int maxNumIterations) {
+        this(maxNumIterations, false);
+    }
+
+    public Palette(int maxNumIterations, boolean shadingByDistance) {
+        this(maxNumIterations, shadingByDistance, SCHEME_RAINBOW, 0);
+    }
+
+    /**
+     * @param colourScheme one of the SCHEME_* constants
+     * @param cycleOffset the number of table entries by which to turn the
+     *        colours; a value of CYCLE_LENGTH goes once round the table
+     */
+    public Palette(int maxNumIterations, boolean shadingByDistance, int colourScheme, int cycleOffset) {
+        mMaxNumIterations = maxNumIterations;
+        mInsideValue = MandelbrotKernel.insideValue(maxNumIterations);
+        mShadingByDistance = shadingByDistance;
+        mColourScheme = colourScheme >= 0 && colourScheme < NUM_COLOUR_SCHEMES ? colourScheme : SCHEME_RAINBOW;
+        mColours = COLOUR_TABLES[mColourScheme];
+        mCycleOffset = cycleOffset & COLOUR_INDEX_MASK;
+    }
+
+    public int getMaxNumIterations() {
+        return mMaxNumIterations;
+    }
+
+    public boolean isShadingByDistance() {
+        return mShadingByDistance;
+    }
+
+    public int getColourScheme() {
+        return mColourScheme;
+    }
+
+    public int getCycleOffset() {
+        return mCycleOffset;
+    }
+
+    /** Returns the ARGB colour of an escape value. */
+    public int colourOf(int escapeValue) {
+
+        if (escapeValue >= mInsideValue) {
+            return INSIDE_COLOUR;
+        }
+
+        return mColours[(escapeValue + mCycleOffset) & COLOUR_INDEX_MASK];
+    }
+
+    /**
+     * Returns the ARGB colour of an escape value whose point is distance
+     * pixels from the set, going by its distance estimate; NaN if the
+     * distance is not known, which is not shaded.
+     */
+    public int colourOf(int escapeValue, float distance) {
+        int colour = colourOf(escapeValue);
+
+        if (!mShadingByDistance || !(distance < SHADE_DISTANCE) || escapeValue >= mInsideValue) {
+            return colour;
+        }
+
+        int brightness = (int)(256.0f * distance / SHADE_DISTANCE);
+
+        return argb(255, ((colour >> 16) & 0xff) * brightness >> 8, ((colour >> 8) & 0xff) * brightness >> 8,
+                (colour & 0xff) * brightness >> 8);
+    }
+
+    /** Packs a colour in the same format as android.graphics.Color.argb(). */
+    static int argb(int alpha, int red, int green, int blue) {
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
+    /** Returns size colours going once round the fully saturated colour wheel, starting at red. */
+    private static int[] constructColourWheel(int size) {
+        int[] colours = new int[size];
+
+        for (int i = 0; i < size; ++i) {
+            double hue = 6.0 * i / size;
+            int sector = (int)hue;
+            int rising = (int)Math.round(255.0 * (hue - sector));
+            int falling = 255 - rising;
+
+            switch (sector) {
+            case 0:
+                colours[i] = argb(255, 255, rising, 0);		// Red to Yellow
+                break;
+            case 1:
+                colours[i] = argb(255, falling, 255, 0);	// Yellow to Green
+                break;
+            case 2:
+                colours[i] = argb(255, 0, 255, rising);		// Green to Cyan/Aqua
+                break;
+            case 3:
+                colours[i] = argb(255, 0, falling, 255);	// Cyan to Blue
+                break;
+            case 4:
+                colours[i] = argb(255, rising, 0, 255);		// Blue to Magenta/Fuchsia
+                break;
+            default:
+                colours[i] = argb(255, 255, 0, falling);	// Magenta to Red
+                break;
+            }
+        }
+
+        return colours;
+    }
+
+    /**
+     * Returns size colours that go through the stops in turn, evenly spaced,
+     * and from the last back to the first; each stop is an RGB colour.
+     */
+    private static int[] constructGradient(int size, int[] stops) {
+        int[] colours = new int[size];
+
+        for (int i = 0; i < size; ++i) {
+            double position = (double)stops.length * i / size;
+            int stop = (int)position;
+            double fraction = position - stop;
+            int from = stops[stop];
+            int to = stops[(stop + 1) % stops.length];
+
+            colours[i] = argb(255, blend(from >> 16, to >> 16, fraction), blend(from >> 8, to >> 8, fraction),
+                    blend(from, to, fraction));
+        }
+
+        return colours;
+    }
+
+    /** Returns the channel in the low byte of from and to, blended by fraction of the way from one to the other. */
+    private static int blend(int from, int to, double fraction) {
+        from &= 0xff;
+        to &= 0xff;
+        return (int)Math.round(from + (to - from) * fraction);
+    }
+}
@@ -0,0 +1,618 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calculates the samples of one progressive (quadtree) pass on a pool of
+ * worker threads, one per available core.
+ *
+ * A pass with square width w visits every w x w square of the canvas and
+ * samples the top-right, bottom-left and bottom-right quarters; the top-left
+ * quarter already has the value sampled by the previous pass. The squares are
+ * grouped into tiles of one row each, or, when a pass has too few rows to
+ * keep every worker busy (the coarse passes, or a short band), of part of a
+ * row, so that there are at least MIN_TILES_PER_THREAD tiles per worker.
+ * Idle workers claim the next unclaimed tile, so a tile full of slow
+ * (interior) points, or a short tile at the ragged edge of a canvas that is
+ * not a whole number of squares, does not hold up the others.
+ *
+ * When the framebuffer keeps distance estimates and the kernel makes them,
+ * a square whose four corners are all at least FAR_SQUARE_WIDTHS square
+ * widths from the set is filled by interpolating between its corners
+ * instead of being sampled any further. A quarter of the distance estimate
+ * is a lower bound on the true distance, so the whole square is outside the
+ * set, and so far from its boundary that the smooth escape value is nearly
+ * linear across it: the interpolated values differ from the calculated
+ * ones by about the palette's step of a sixteenth of an iteration, which
+ * is checked at the square's quarter samples.
+ *
+ * Work can be cancelled from any thread by cancel(), which bumps the render
+ * generation. Each call that renders rows is given the generation that it
+ * belongs to, and its workers claim no more tiles once the generation has
+ * moved on, so cancelled work stops within one row.
+ *
+ * This class has no Android dependencies.
+ */
+class ParallelRenderer {
+    /**
+     * Rectangles no larger than this in both dimensions are calculated point
+     * by point instead of being subdivided further.
+     */
+    private static final int MIN_TRACED_RECTANGLE_SIZE = 4;
+
+    /** The fewest tiles per worker thread that a call is split into, where the columns allow */
+    private static final int MIN_TILES_PER_THREAD = 4;
+
+    /** How many of its widths a square's corners must be from the set for it to be interpolated */
+    static final int FAR_SQUARE_WIDTHS = 16;
+
+    /** Renders columns firstColumn to endColumn - 1 of one row of squares; called on a worker thread. */
+    private interface TileTask {
+        void renderTile(int row, int firstColumn, int endColumn);
+    }
+
+    private final int mNumThreads;
+    private final ExecutorService mExecutor;
+
+    /** Bumped by cancel(); rows are only claimed for the current generation */
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+
+    /* The points that the workers' kernels have iterated, and the iterations they have run */
+    private final AtomicLong mPointCount = new AtomicLong(0);
+    private final AtomicLong mIterationCount = new AtomicLong(0);
+
+    public ParallelRenderer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelRenderer(int numThreads) {
+        mNumThreads = Math.max(1, numThreads);
+        mExecutor = Executors.newFixedThreadPool(mNumThreads, new ThreadFactory() {
+            private final AtomicInteger mThreadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MandelbrotWorker-" + mThreadNumber.getAndIncrement());
+
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public int getNumThreads() {
+        return mNumThreads;
+    }
+
+    /**
+     * Returns the number of points that the kernels have iterated on the
+     * workers, e.g. to take the difference across a band. Pixels that are
+     * kept, loaded, filled or interpolated are not counted.
+     */
+    public long getPointCount() {
+        return mPointCount.get();
+    }
+
+    /** Returns the number of iterations that the kernels have run on the workers. */
+    public long getIterationCount() {
+        return mIterationCount.get();
+    }
+
+    /** Returns the current render generation. May be called from any thread. */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Cancels the work of the current generation: the rows that are being
+     * rendered are finished, and no more are started. May be called from any
+     * thread.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Calculates the samples for the squares in rows firstRow to
+     * firstRow + numRows - 1 of a pass, fills each sampled quarter square of
+     * the framebuffer with its colour, and returns when all of them are done.
+     * The quarter squares are disjoint, so the workers write to the
+     * framebuffer directly.
+     *
+     * A BatchEscapeTimeKernel is given each row's samples as one batch.
+     *
+     * @param kernel calculates the iteration count of a pixel
+     * @param squareWidth the width of this pass's squares, in pixels
+     * @param palette maps the pixels' escape values to colours
+     * @param generation the render generation that this work belongs to
+     * @return the number of rows rendered, from firstRow on; fewer than
+     *         numRows if the work was cancelled
+     */
+    public int renderRows(final EscapeTimeKernel kernel, final int squareWidth,
+            final int firstRow, int numRows, final int numColumns,
+            final Palette palette, final FrameBuffer frame, int generation) {
+        final int halfWidth = squareWidth / 2;
+        final boolean estimating = frame.distances != null && kernel instanceof DistanceEstimateKernel;
+
+        // The batch kernels do not estimate distances, so they are left for the samples that need none.
+        final boolean batching = kernel instanceof BatchEscapeTimeKernel
+                && !(estimating && (halfWidth >= 2 || palette.isShadingByDistance()));
+
+        return forEachTile(numRows, numColumns, generation, new TileTask() {
+            @Override
+            public void renderTile(int row, int firstColumn, int endColumn) {
+                int top = (firstRow + row) * squareWidth;
+
+                if (estimating) {
+
+                    for (int column = firstColumn; column < endColumn; ++column) {
+                        interpolateFarSquare(kernel, column * squareWidth, top, squareWidth, palette, frame);
+                    }
+                }
+
+                if (batching) {
+                    calculateTileSamples((BatchEscapeTimeKernel)kernel, squareWidth, top, firstColumn, endColumn,
+                            frame);
+                }
+
+                for (int column = firstColumn; column < endColumn; ++column) {
+                    int left = column * squareWidth;
+
+                    sampleAndFillSquare(kernel, left + halfWidth, top, halfWidth, palette, frame);
+                    sampleAndFillSquare(kernel, left, top + halfWidth, halfWidth, palette, frame);
+                    sampleAndFillSquare(kernel, left + halfWidth, top + halfWidth, halfWidth, palette, frame);
+                }
+            }
+        });
+    }
+
+    /**
+     * Renders the squares in rows firstRow to firstRow + numRows - 1 at full
+     * resolution by boundary tracing (the Mariani-Silver algorithm): only the
+     * border of a rectangle is calculated, and if every border pixel has the
+     * same escape value, the whole rectangle is filled with it; otherwise
+     * the rectangle is split in two and each half is traced in turn.
+     *
+     * The escape values include the fractions of an iteration, which vary
+     * across any rectangle of escaping points, so in practice only
+     * rectangles whose borders are inside the set are filled.
+     *
+     * The parameters and the result are as for renderRows().
+     */
+    public int traceRows(final EscapeTimeKernel kernel, final int squareWidth,
+            final int firstRow, int numRows, final int numColumns,
+            final Palette palette, final FrameBuffer frame, int generation) {
+        return forEachTile(numRows, numColumns, generation, new TileTask() {
+            @Override
+            public void renderTile(int row, int firstColumn, int endColumn) {
+                int top = (firstRow + row) * squareWidth;
+                int bottom = Math.min(top + squareWidth, frame.height);
+
+                for (int column = firstColumn; column < endColumn; ++column) {
+                    int left = column * squareWidth;
+                    int right = Math.min(left + squareWidth, frame.width);
+
+                    traceRectangle(kernel, left, top, right, bottom, palette, frame);
+                }
+            }
+        });
+    }
+
+    /**
+     * Calculates the pixels of rows top to top + numRows - 1 of the
+     * framebuffer that are not known, e.g. the strips uncovered by a pan, and
+     * paints them; the known pixels are left as they are. A
+     * BatchEscapeTimeKernel is given each tile's pixels as one batch.
+     *
+     * @param generation the render generation that this work belongs to
+     * @return the number of rows rendered, from top on; fewer than numRows if
+     *         the work was cancelled
+     */
+    public int fillGapRows(final EscapeTimeKernel kernel, final int top, int numRows,
+            final Palette palette, final FrameBuffer frame, int generation) {
+        return forEachTile(numRows, frame.width, generation, new TileTask() {
+            @Override
+            public void renderTile(int row, int firstColumn, int endColumn) {
+                int y = top + row;
+                int rowStart = y * frame.width;
+
+                if (kernel instanceof BatchEscapeTimeKernel && !(frame.distances != null
+                        && palette.isShadingByDistance())) {
+                    int[] xs = new int[endColumn - firstColumn];
+                    int count = 0;
+
+                    for (int x = firstColumn; x < endColumn; ++x) {
+
+                        if (frame.iterations[rowStart + x] == FrameBuffer.UNKNOWN) {
+                            xs[count++] = x;
+                        }
+                    }
+
+                    if (count == 0) {
+                        return;
+                    }
+
+                    int[] ys = new int[count];
+                    int[] results = new int[count];
+
+                    Arrays.fill(ys, y);
+                    ((BatchEscapeTimeKernel)kernel).iterate(xs, ys, count, results);
+
+                    for (int i = 0; i < count; ++i) {
+                        frame.iterations[rowStart + xs[i]] = results[i];
+                        frame.paint(rowStart + xs[i], palette);
+                    }
+                } else {
+                    for (int x = firstColumn; x < endColumn; ++x) {
+
+                        if (frame.iterations[rowStart + x] == FrameBuffer.UNKNOWN) {
+                            sample(kernel, x, y, palette, frame);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Calculates every pixel of rows top to top + numRows - 1 of an image
+     * width pixels wide, e.g. a band of an exported poster, and stores their
+     * colours in pixels, row by row from index 0. No pixel is sampled twice,
+     * so nothing is kept but the colours.
+     *
+     * @param generation the render generation that this work belongs to
+     * @return the number of rows rendered, from top on; fewer than numRows if
+     *         the work was cancelled
+     */
+    public int renderPixelRows(final EscapeTimeKernel kernel, final int top, int numRows, final int width,
+            final Palette palette, final int[] pixels, int generation) {
+        return forEachTile(numRows, width, generation, new TileTask() {
+            @Override
+            public void renderTile(int row, int firstColumn, int endColumn) {
+                int y = top + row;
+                int rowStart = row * width;
+
+                if (palette.isShadingByDistance() && kernel instanceof DistanceEstimateKernel) {
+                    float[] distance = new float[1];
+
+                    for (int x = firstColumn; x < endColumn; ++x) {
+                        int value = ((DistanceEstimateKernel)kernel).iterate(x, y, distance, 0);
+
+                        pixels[rowStart + x] = palette.colourOf(value, distance[0]);
+                    }
+                } else if (kernel instanceof BatchEscapeTimeKernel) {
+                    int count = endColumn - firstColumn;
+                    int[] xs = new int[count];
+                    int[] ys = new int[count];
+                    int[] results = new int[count];
+
+                    for (int i = 0; i < count; ++i) {
+                        xs[i] = firstColumn + i;
+                        ys[i] = y;
+                    }
+
+                    ((BatchEscapeTimeKernel)kernel).iterate(xs, ys, count, results);
+
+                    for (int i = 0; i < count; ++i) {
+                        pixels[rowStart + firstColumn + i] = palette.colourOf(results[i]);
+                    }
+                } else {
+                    for (int x = firstColumn; x < endColumn; ++x) {
+                        pixels[rowStart + x] = palette.colourOf(kernel.iterate(x, y));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the worker threads. The renderer may not be used afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Runs task.renderTile() over rows 0 to numRows - 1 of numColumns columns
+     * on the worker threads, each row split into as many tiles as it takes to
+     * give every worker MIN_TILES_PER_THREAD tiles, and returns when all of
+     * them are done, or when the tiles that had been claimed are done if the
+     * generation moves on.
+     *
+     * @return the number of rows done; the tiles are claimed in order, so
+     *         these are rows 0 to the result - 1
+     */
+    private int forEachTile(final int numRows, final int numColumns, final int generation, final TileTask task) {
+        final int tilesPerRow = Math.max(1, Math.min(numColumns,
+                (MIN_TILES_PER_THREAD * mNumThreads + numRows - 1) / Math.max(1, numRows)));
+        final int numTiles = numRows * tilesPerRow;
+        final AtomicInteger nextTile = new AtomicInteger(0);
+        int numWorkers = Math.min(mNumThreads, numTiles);
+        List<Callable<Void>> workers = new ArrayList<Callable<Void>>(numWorkers);
+
+        for (int w = 0; w < numWorkers; ++w) {
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    MandelbrotKernel.IterationCount count = MandelbrotKernel.getIterationCount();
+                    long points = count.points;
+                    long iterations = count.iterations;
+                    int tile;
+
+                    try {
+                        while (mGeneration.get() == generation && (tile = nextTile.getAndIncrement()) < numTiles) {
+                            int part = tile % tilesPerRow;
+
+                            task.renderTile(tile / tilesPerRow, part * numColumns / tilesPerRow,
+                                    (part + 1) * numColumns / tilesPerRow);
+                        }
+                    } finally {
+                        // The kernels counted this thread's work; add what these tiles took.
+                        mPointCount.addAndGet(count.points - points);
+                        mIterationCount.addAndGet(count.iterations - iterations);
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for (Future<Void> f : mExecutor.invokeAll(workers)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        return Math.min(nextTile.get(), numTiles) / tilesPerRow;
+    }
+
+    /**
+     * Calculates, as one batch, the iteration counts of the samples of one
+     * tile of a row of squares that are not already known, so that sampling
+     * the tile afterwards finds every count in the iteration buffer.
+     */
+    private static void calculateTileSamples(BatchEscapeTimeKernel kernel, int squareWidth, int top,
+            int firstColumn, int endColumn, FrameBuffer frame) {
+        int halfWidth = squareWidth / 2;
+        int[] xs = new int[3 * (endColumn - firstColumn)];
+        int[] ys = new int[3 * (endColumn - firstColumn)];
+        int count = 0;
+
+        for (int column = firstColumn; column < endColumn; ++column) {
+            int left = column * squareWidth;
+
+            for (int quarter = 1; quarter < 4; ++quarter) {
+                int x = left + (quarter & 1) * halfWidth;
+                int y = top + (quarter >> 1) * halfWidth;
+
+                if (x < frame.width && y < frame.height && frame.iterations[y * frame.width + x] == FrameBuffer.UNKNOWN) {
+                    xs[count] = x;
+                    ys[count] = y;
+                    ++count;
+                }
+            }
+        }
+
+        if (count == 0) {
+            return;
+        }
+
+        int[] results = new int[count];
+
+        kernel.iterate(xs, ys, count, results);
+
+        for (int i = 0; i < count; ++i) {
+            frame.iterations[ys[i] * frame.width + xs[i]] = results[i];
+        }
+    }
+
+    /**
+     * Returns the iteration count of the pixel at (x, y), calculating it if
+     * it is not already known, and sets the pixel's colour. Its distance
+     * estimate is calculated too if the palette shades by distance.
+     */
+    static int sample(EscapeTimeKernel kernel, int x, int y, Palette palette, FrameBuffer frame) {
+        return sample(kernel, x, y, palette, frame, palette.isShadingByDistance());
+    }
+
+    /**
+     * Returns the iteration count of the pixel at (x, y) as sample() does,
+     * calculating its distance estimate too if estimateDistance is true and
+     * the framebuffer and the kernel can keep and make one.
+     */
+    private static int sample(EscapeTimeKernel kernel, int x, int y, Palette palette, FrameBuffer frame,
+            boolean estimateDistance) {
+        int index = y * frame.width + x;
+        int iterations = frame.iterations[index];
+
+        if (iterations == FrameBuffer.UNKNOWN) {
+
+            if (estimateDistance && frame.distances != null && kernel instanceof DistanceEstimateKernel) {
+                iterations = ((DistanceEstimateKernel)kernel).iterate(x, y, frame.distances, index);
+            } else {
+                iterations = kernel.iterate(x, y);
+            }
+
+            frame.iterations[index] = iterations;
+        }
+
+        frame.paint(index, palette);
+        return iterations;
+    }
+
+    /**
+     * Samples the pixel at the top left of a square and fills the square
+     * with its colour. Squares that lie outside the framebuffer are skipped.
+     * The sample becomes a corner of squares of this width in the next pass,
+     * so its distance estimate is calculated if they may be interpolated.
+     */
+    static void sampleAndFillSquare(EscapeTimeKernel kernel,
+            int left, int top, int squareWidth, Palette palette, FrameBuffer frame) {
+
+        if (left >= frame.width || top >= frame.height) {
+            return;
+        }
+
+        sample(kernel, left, top, palette, frame, squareWidth >= 2 || palette.isShadingByDistance());
+        frame.fillSquare(left, top, squareWidth, frame.pixels[top * frame.width + left]);
+    }
+
+    /**
+     * Fills the pixels of a square that are not known by bilinear
+     * interpolation between the escape values and distance estimates of its
+     * four corners, if they are all known and at least FAR_SQUARE_WIDTHS
+     * square widths from the set. The smooth escape values are not quite
+     * continuous where their fractions are clamped, so the square's three
+     * quarter samples (which this pass needs anyway) are calculated first,
+     * and the square is only filled if each is within a sixteenth of an
+     * iteration of its interpolated value. The right and bottom corners
+     * belong to the neighbouring squares, and are not written.
+     *
+     * @return true if the square was filled
+     */
+    private static boolean interpolateFarSquare(EscapeTimeKernel kernel, int left, int top, int squareWidth,
+            Palette palette, FrameBuffer frame) {
+        int right = left + squareWidth;
+        int bottom = top + squareWidth;
+
+        // The last pass's squares hold nothing but their quarter samples.
+        if (squareWidth < 4 || right >= frame.width || bottom >= frame.height) {
+            return false;
+        }
+
+        int[] iterations = frame.iterations;
+        float[] distances = frame.distances;
+        int topLeft = top * frame.width + left;
+        int topRight = top * frame.width + right;
+        int bottomLeft = bottom * frame.width + left;
+        int bottomRight = bottom * frame.width + right;
+        float minDistance = (float)FAR_SQUARE_WIDTHS * squareWidth;
+
+        // An unknown distance is NaN, and the distance of a point in the set is 0, so both fail.
+        if (!(distances[topLeft] >= minDistance && distances[topRight] >= minDistance
+                && distances[bottomLeft] >= minDistance && distances[bottomRight] >= minDistance)) {
+            return false;
+        }
+
+        int halfWidth = squareWidth / 2;
+        long area = (long)squareWidth * squareWidth;
+
+        for (int quarter = 1; quarter < 4; ++quarter) {
+            int x = (quarter & 1) * halfWidth;
+            int y = (quarter >> 1) * halfWidth;
+            int value = sample(kernel, left + x, top + y, palette, frame, true);
+            long interpolated = ((squareWidth - x) * (squareWidth - y) * (long)iterations[topLeft]
+                    + x * (squareWidth - y) * (long)iterations[topRight]
+                    + (squareWidth - x) * y * (long)iterations[bottomLeft]
+                    + x * y * (long)iterations[bottomRight] + area / 2) / area;
+
+            if (Math.abs(value - interpolated) > 1) {
+                return false;
+            }
+        }
+
+        for (int y = 0; y < squareWidth; ++y) {
+            int rowStart = (top + y) * frame.width + left;
+
+            for (int x = 0; x < squareWidth; ++x) {
+                int i = rowStart + x;
+
+                if (iterations[i] != FrameBuffer.UNKNOWN) {
+                    continue;
+                }
+
+                long w00 = (long)(squareWidth - x) * (squareWidth - y);
+                long w10 = (long)x * (squareWidth - y);
+                long w01 = (long)(squareWidth - x) * y;
+                long w11 = (long)x * y;
+
+                iterations[i] = (int)((w00 * iterations[topLeft] + w10 * iterations[topRight]
+                        + w01 * iterations[bottomLeft] + w11 * iterations[bottomRight] + area / 2) / area);
+                distances[i] = (w00 * distances[topLeft] + w10 * distances[topRight]
+                        + w01 * distances[bottomLeft] + w11 * distances[bottomRight]) / area;
+                frame.paint(i, palette);
+            }
+        }
+
+        return true;
+    }
+
+    private static void traceRectangle(EscapeTimeKernel kernel,
+            int left, int top, int right, int bottom, Palette palette, FrameBuffer frame) {
+        int width = right - left;
+        int height = bottom - top;
+
+        if (width <= MIN_TRACED_RECTANGLE_SIZE && height <= MIN_TRACED_RECTANGLE_SIZE) {
+
+            for (int y = top; y < bottom; ++y) {
+
+                for (int x = left; x < right; ++x) {
+                    sample(kernel, x, y, palette, frame);
+                }
+            }
+
+            return;
+        }
+
+        // The border is uniform only if every pixel has the same escape value,
+        // fraction and all: filling a rectangle whose border has the same whole
+        // number of iterations would band the smooth colouring.
+        int borderIterations = sample(kernel, left, top, palette, frame);
+        boolean uniform = true;
+
+        for (int x = left; x < right; ++x) {
+            uniform &= sample(kernel, x, top, palette, frame) == borderIterations;
+            uniform &= sample(kernel, x, bottom - 1, palette, frame) == borderIterations;
+        }
+
+        for (int y = top + 1; y < bottom - 1; ++y) {
+            uniform &= sample(kernel, left, y, palette, frame) == borderIterations;
+            uniform &= sample(kernel, right - 1, y, palette, frame) == borderIterations;
+        }
+
+        if (uniform) {
+            int colour = frame.pixels[top * frame.width + left];
+
+            for (int y = top + 1; y < bottom - 1; ++y) {
+                int rowStart = y * frame.width;
+
+                for (int i = rowStart + left + 1; i < rowStart + right - 1; ++i) {
+
+                    if (frame.iterations[i] == FrameBuffer.UNKNOWN) {
+                        frame.iterations[i] = borderIterations;
+                        frame.pixels[i] = colour;
+
+                        if (frame.distances != null) {
+                            frame.distances[i] = frame.distances[top * frame.width + left];
+                        }
+                    }
+                }
+            }
+        } else if (width >= height) {
+            // The two halves share the middle column, which is calculated only once.
+            int middle = (left + right) / 2;
+
+            traceRectangle(kernel, left, top, middle + 1, bottom, palette, frame);
+            traceRectangle(kernel, middle, top, right, bottom, palette, frame);
+        } else {
+            int middle = (top + bottom) / 2;
+
+            traceRectangle(kernel, left, top, right, middle + 1, palette, frame);
+            traceRectangle(kernel, left, middle, right, bottom, palette, frame);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * The escape-time kernel for deep zooms, where neighbouring pixels are too
+ * close together to be told apart in double precision.
+ *
+ * One reference orbit, for the point at the centre of the view, is
+ * calculated in arbitrary precision and stored as doubles. Each pixel then
+ * iterates only its offset dz from the reference orbit Z, which is small
+ * enough for doubles:
+ *
+ *   dz(n+1) = 2 * Z(n) * dz(n) + dz(n)^2 + dc
+ *
+ * where dc is the pixel's offset from the reference point. Both orbits start
+ * from 0, which is one step behind MandelbrotKernel's orbit (that starts
+ * from c), and the counts are adjusted to match.
+ *
+ * A truncated series dz(n) = A(n) dc + B(n) dc^2 + C(n) dc^3 skips the
+ * iterations that are the same for every pixel of the view. When a pixel's
+ * orbit comes closer to 0 than its offset (the situation in which a fixed
+ * reference orbit "glitches"), or when the reference orbit escapes first,
+ * the pixel is rebased: its full value becomes the new offset and it
+ * carries on from the start of the reference orbit.
+ */
+class PerturbationKernel implements EscapeTimeKernel {
+    /** Decimal digits of precision used for the reference orbit beyond those needed to resolve a pixel */
+    private static final int EXTRA_DIGITS = 20;
+
+    /**
+     * The series is used only while its cubic term is at most this fraction
+     * of the linear term everywhere in the view.
+     */
+    private static final double SERIES_TOLERANCE = 1.0e-12;
+
+    private final int mMaxNumIterations;
+    private final double mPixelWidth;
+    private final double mPixelHeight;
+    private final double mCentreX;
+    private final double mCentreY;
+
+    /** The reference point, rounded to double precision; used only once a pixel has escaped */
+    private final double mReferenceCr;
+    private final double mReferenceCi;
+
+    /* The reference orbit, Z(0) = 0 to Z(mReferenceLength - 1) */
+    private final double[] mReferenceR;
+    private final double[] mReferenceI;
+    private final int mReferenceLength;
+
+    /* The series coefficients at iteration mNumSkipped */
+    private int mNumSkipped = 0;
+    private double mAR = 0.0;
+    private double mAI = 0.0;
+    private double mBR = 0.0;
+    private double mBI = 0.0;
+    private double mCR = 0.0;
+    private double mCI = 0.0;
+
+    /**
+     * @param viewLeft the real part of the point at pixel column 0
+     * @param viewTop the imaginary part of the point at pixel row 0
+     * @param pixelWidth the width of one pixel in the complex plane
+     * @param pixelHeight the height of one pixel in the complex plane
+     * @param canvasWidth the width of the view in pixels
+     * @param canvasHeight the height of the view in pixels
+     */
+    public PerturbationKernel(BigDecimal viewLeft, BigDecimal viewTop, double pixelWidth, double pixelHeight,
+            int canvasWidth, int canvasHeight, int maxNumIterations) {
+        mMaxNumIterations = maxNumIterations;
+        mPixelWidth = pixelWidth;
+        mPixelHeight = pixelHeight;
+        mCentreX = canvasWidth / 2;
+        mCentreY = canvasHeight / 2;
+
+        BigDecimal referenceR = viewLeft.add(new BigDecimal(pixelWidth).multiply(BigDecimal.valueOf(canvasWidth / 2)));
+        BigDecimal referenceI = viewTop.subtract(new BigDecimal(pixelHeight).multiply(BigDecimal.valueOf(canvasHeight / 2)));
+        mReferenceCr = referenceR.doubleValue();
+        mReferenceCi = referenceI.doubleValue();
+
+        int digits = EXTRA_DIGITS - (int)Math.floor(Math.log10(Math.min(pixelWidth, pixelHeight)));
+
+        // The orbit from 0 is one step longer than the orbit from c.
+        mReferenceR = new double[maxNumIterations + 2];
+        mReferenceI = new double[maxNumIterations + 2];
+        mReferenceLength = calculateReferenceOrbit(referenceR, referenceI, new MathContext(digits));
+
+        double maxOffsetR = Math.max(mCentreX, canvasWidth - mCentreX) * pixelWidth;
+        double maxOffsetI = Math.max(mCentreY, canvasHeight - mCentreY) * pixelHeight;
+
+        calculateSeries(Math.hypot(maxOffsetR, maxOffsetI));
+    }
+
+    @Override
+    public int getMaxNumIterations() {
+        return mMaxNumIterations;
+    }
+
+    @Override
+    public int iterate(int x, int y) {
+        double dcr = (x - mCentreX) * mPixelWidth;
+        double dci = (mCentreY - y) * mPixelHeight;
+        int n = mNumSkipped;
+        int m = n;
+        double dzr;
+        double dzi;
+
+        if (n > 0) {
+            // The escape value counts the iterations that the series skips, which are not run.
+            MandelbrotKernel.countIterations(-n);
+        }
+
+        if (n > 0) {
+            double dc2r = dcr * dcr - dci * dci;
+            double dc2i = 2.0 * dcr * dci;
+            double dc3r = dc2r * dcr - dc2i * dci;
+            double dc3i = dc2r * dci + dc2i * dcr;
+
+            dzr = mAR * dcr - mAI * dci + mBR * dc2r - mBI * dc2i + mCR * dc3r - mCI * dc3i;
+            dzi = mAR * dci + mAI * dcr + mBR * dc2i + mBI * dc2r + mCR * dc3i + mCI * dc3r;
+        } else {
+            dzr = 0.0;
+            dzi = 0.0;
+        }
+
+        // z(n) is the point that MandelbrotKernel tests on its iteration n - 1.
+        for (; n <= mMaxNumIterations; ++n) {
+            double zr = mReferenceR[m] + dzr;
+            double zi = mReferenceI[m] + dzi;
+            double z2 = zr * zr + zi * zi;
+
+            if (n > 0 && z2 >= 4.0) {
+                return MandelbrotKernel.escapeValue(n - 1, zr, zi, mReferenceCr + dcr, mReferenceCi + dci);
+            }
+
+            if (m == mReferenceLength - 1 || z2 < dzr * dzr + dzi * dzi) {
+                // Rebase onto the start of the reference orbit, where Z(0) = 0.
+                dzr = zr;
+                dzi = zi;
+                m = 0;
+            }
+
+            double refR = mReferenceR[m];
+            double refI = mReferenceI[m];
+            double tempdzr = 2.0 * (refR * dzr - refI * dzi) + dzr * dzr - dzi * dzi + dcr;
+
+            dzi = 2.0 * (refR * dzi + refI * dzr) + 2.0 * dzr * dzi + dci;
+            dzr = tempdzr;
+            ++m;
+        }
+
+        return MandelbrotKernel.notEscaped(mMaxNumIterations, mMaxNumIterations);
+    }
+
+    /**
+     * Calculates Z(n) for the reference point until it escapes or the
+     * iteration limit is reached.
+     *
+     * @return the number of points stored
+     */
+    private int calculateReferenceOrbit(BigDecimal cr, BigDecimal ci, MathContext mc) {
+        BigDecimal zr = BigDecimal.ZERO;
+        BigDecimal zi = BigDecimal.ZERO;
+        BigDecimal two = BigDecimal.valueOf(2);
+        int n = 0;
+
+        for (;;) {
+            mReferenceR[n] = zr.doubleValue();
+            mReferenceI[n] = zi.doubleValue();
+            ++n;
+
+            if (n == mReferenceR.length
+                    || mReferenceR[n - 1] * mReferenceR[n - 1] + mReferenceI[n - 1] * mReferenceI[n - 1] >= 4.0) {
+                return n;
+            }
+
+            BigDecimal zr2 = zr.multiply(zr, mc);
+            BigDecimal zi2 = zi.multiply(zi, mc);
+            BigDecimal tempzr = zr2.subtract(zi2, mc).add(cr, mc);
+
+            zi = two.multiply(zr, mc).multiply(zi, mc).add(ci, mc);
+            zr = tempzr;
+        }
+    }
+
+    /**
+     * Advances the series coefficients along the reference orbit for as long
+     * as the truncated series is accurate for every pixel, and no pixel can
+     * have escaped.
+     *
+     * @param maxOffset the largest |dc| in the view
+     */
+    private void calculateSeries(double maxOffset) {
+        double ar = 0.0;
+        double ai = 0.0;
+        double br = 0.0;
+        double bi = 0.0;
+        double cr = 0.0;
+        double ci = 0.0;
+        double offset2 = maxOffset * maxOffset;
+        double offset3 = offset2 * maxOffset;
+
+        for (int n = 0; n < mReferenceLength - 1; ++n) {
+            double zr = mReferenceR[n];
+            double zi = mReferenceI[n];
+            double nextAR = 2.0 * (zr * ar - zi * ai) + 1.0;
+            double nextAI = 2.0 * (zr * ai + zi * ar);
+            double nextBR = 2.0 * (zr * br - zi * bi) + ar * ar - ai * ai;
+            double nextBI = 2.0 * (zr * bi + zi * br) + 2.0 * ar * ai;
+            double nextCR = 2.0 * (zr * cr - zi * ci) + 2.0 * (ar * br - ai * bi);
+            double nextCI = 2.0 * (zr * ci + zi * cr) + 2.0 * (ar * bi + ai * br);
+            double linear = Math.hypot(nextAR, nextAI) * maxOffset;
+            double quadratic = Math.hypot(nextBR, nextBI) * offset2;
+            double cubic = Math.hypot(nextCR, nextCI) * offset3;
+            double reference = Math.hypot(mReferenceR[n + 1], mReferenceI[n + 1]);
+
+            if (Double.isInfinite(cubic) || Double.isNaN(cubic) || cubic > SERIES_TOLERANCE * linear
+                    || reference + linear + quadratic + cubic >= 2.0) {
+                break;
+            }
+
+            ar = nextAR;
+            ai = nextAI;
+            br = nextBR;
+            bi = nextBI;
+            cr = nextCR;
+            ci = nextCI;
+            mNumSkipped = n + 1;
+        }
+
+        mAR = ar;
+        mAI = ai;
+        mBR = br;
+        mBI = bi;
+        mCR = cr;
+        mCI = ci;
+    }
+}
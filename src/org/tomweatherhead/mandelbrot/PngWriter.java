@@ -0,0 +1,164 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an RGB PNG image one band of rows at a time, so that an image of
+ * any size can be written while only one band of it is in memory. The rows
+ * are compressed as they arrive, and written out in 64 KB IDAT chunks.
+ *
+ * Each row is written with the Sub filter (the difference from the pixel to
+ * its left), which suits the smooth colour gradients of the escape-time
+ * palette and costs one subtraction per byte.
+ *
+ * This class has no Android dependencies. It is not thread-safe.
+ */
+class PngWriter {
+    private static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    /** The largest IDAT chunk written */
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private static final int FILTER_SUB = 1;
+
+    private final DataOutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final Deflater mDeflater;
+    private final CRC32 mCrc = new CRC32();
+
+    /** One filtered row: the filter type, then three bytes per pixel */
+    private final byte[] mRow;
+    private final byte[] mChunk = new byte[CHUNK_BYTES];
+    private int mChunkLength = 0;
+    private int mRowsWritten = 0;
+
+    /**
+     * Writes the PNG signature and header.
+     *
+     * @param compressionLevel a java.util.zip.Deflater level, from
+     *        Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     */
+    public PngWriter(OutputStream out, int width, int height, int compressionLevel) throws IOException {
+        mOut = new DataOutputStream(out);
+        mWidth = width;
+        mHeight = height;
+        mRow = new byte[1 + 3 * width];
+
+        byte[] header = new byte[13];
+
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;		// Bits per channel
+        header[9] = 2;		// Colour type: RGB
+        header[10] = 0;		// Deflate
+        header[11] = 0;		// Adaptive filtering, one filter type per row
+        header[12] = 0;		// Not interlaced
+
+        mOut.write(SIGNATURE);
+        writeChunk("IHDR", header, header.length);
+
+        // Made last, so that it needs no freeing if the header cannot be written.
+        mDeflater = new Deflater(compressionLevel);
+    }
+
+    /**
+     * Compresses numRows rows of ARGB pixels (the alpha is dropped), taken
+     * from pixels row by row from offset on.
+     */
+    public void writeRows(int[] pixels, int offset, int numRows) throws IOException {
+
+        if (mRowsWritten + numRows > mHeight) {
+            throw new IllegalStateException("More than " + mHeight + " rows");
+        }
+
+        for (int y = 0; y < numRows; ++y) {
+            int rowStart = offset + y * mWidth;
+            int previous = 0;
+
+            mRow[0] = FILTER_SUB;
+
+            for (int x = 0; x < mWidth; ++x) {
+                int pixel = pixels[rowStart + x];
+                int i = 1 + 3 * x;
+
+                mRow[i] = (byte)((pixel >> 16) - (previous >> 16));
+                mRow[i + 1] = (byte)((pixel >> 8) - (previous >> 8));
+                mRow[i + 2] = (byte)(pixel - previous);
+                previous = pixel;
+            }
+
+            mDeflater.setInput(mRow);
+
+            while (!mDeflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        mRowsWritten += numRows;
+    }
+
+    /** Writes the last of the compressed rows and the end of the image. The stream is left open. */
+    public void finish() throws IOException {
+
+        if (mRowsWritten != mHeight) {
+            throw new IllegalStateException(mRowsWritten + " of " + mHeight + " rows written");
+        }
+
+        mDeflater.finish();
+
+        while (!mDeflater.finished()) {
+            deflate();
+        }
+
+        if (mChunkLength > 0) {
+            writeChunk("IDAT", mChunk, mChunkLength);
+        }
+
+        writeChunk("IEND", mChunk, 0);
+        mOut.flush();
+    }
+
+    /**
+     * Frees the compressor's native memory, whether or not the image was
+     * finished; the stream is left open. Call it once the writer is no
+     * longer used, e.g. in a finally block; calling it again does nothing.
+     */
+    public void close() {
+        mDeflater.end();
+    }
+
+    /** Runs the compressor once, and writes an IDAT chunk whenever the chunk buffer is full. */
+    private void deflate() throws IOException {
+        mChunkLength += mDeflater.deflate(mChunk, mChunkLength, mChunk.length - mChunkLength);
+
+        if (mChunkLength == mChunk.length) {
+            writeChunk("IDAT", mChunk, mChunkLength);
+            mChunkLength = 0;
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+
+        mCrc.reset();
+        mCrc.update(typeBytes, 0, typeBytes.length);
+        mCrc.update(data, 0, length);
+
+        mOut.writeInt(length);
+        mOut.write(typeBytes);
+        mOut.write(data, 0, length);
+        mOut.writeInt((int)mCrc.getValue());
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte)(value >>> 24);
+        bytes[offset + 1] = (byte)(value >>> 16);
+        bytes[offset + 2] = (byte)(value >>> 8);
+        bytes[offset + 3] = (byte)value;
+    }
+}
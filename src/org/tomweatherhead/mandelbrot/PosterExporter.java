@@ -0,0 +1,183 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Renders an image of a view at any size, e.g. a 16384 x 16384 poster, and
+ * streams it into a PNG file one band of rows at a time, so that memory use
+ * is bounded by the band size rather than the image size.
+ *
+ * Each band's rows are rendered on the ParallelRenderer's workers, every
+ * pixel once (there is no progressive display to feed). While one band is
+ * being rendered, the previous one is compressed on a thread of its own, so
+ * there are two bands in memory.
+ *
+ * This class has no Android dependencies.
+ */
+class PosterExporter {
+    /** The default number of pixels in a band: 4 MB of colours */
+    static final int DEFAULT_BAND_PIXELS = 1024 * 1024;
+
+    /** Hears how an export is going; called on the thread that runs export(). */
+    interface ProgressListener {
+
+        /**
+         * @param rowsDone the number of rows rendered so far
+         * @param height the number of rows in the image
+         * @param elapsedNanos the time since the export started
+         */
+        void onProgress(int rowsDone, int height, long elapsedNanos);
+    }
+
+    private final ParallelRenderer mParallelRenderer;
+    private int mBandPixels = DEFAULT_BAND_PIXELS;
+    private int mCompressionLevel = Deflater.BEST_SPEED;
+
+    public PosterExporter(ParallelRenderer parallelRenderer) {
+        mParallelRenderer = parallelRenderer;
+    }
+
+    /** Sets about how many pixels each band holds; a band is at least one row. */
+    public void setBandPixels(int bandPixels) {
+        mBandPixels = Math.max(1, bandPixels);
+    }
+
+    /** Sets the java.util.zip.Deflater level of the PNG's compression. */
+    public void setCompressionLevel(int compressionLevel) {
+        mCompressionLevel = compressionLevel;
+    }
+
+    /**
+     * Stops the export that is running within one row of pixels; export()
+     * then returns false. This cancels all the work of the ParallelRenderer,
+     * so an export should have a ParallelRenderer of its own. May be called
+     * from any thread.
+     */
+    public void cancel() {
+        mParallelRenderer.cancel();
+    }
+
+    /**
+     * Renders the view of kernel at width x height pixels into out as a PNG
+     * image. The stream is not closed, and nothing writes to it once this
+     * returns or throws, so the caller may close or delete it.
+     *
+     * @param kernel a kernel for the view at width x height pixels; see
+     *        MandelbrotRenderer.createKernel(int, int)
+     * @param listener hears about each band, or null
+     * @return true if the image was written, false if the export was cancelled
+     */
+    public boolean export(EscapeTimeKernel kernel, Palette palette, int width, int height, OutputStream out,
+            ProgressListener listener) throws IOException {
+        final PngWriter writer = new PngWriter(out, width, height, mCompressionLevel);
+        ExecutorService encoder = null;
+
+        try {
+            int bandRows = Math.max(1, Math.min(height, mBandPixels / width));
+            int[][] bands = { new int[bandRows * width], new int[bandRows * width] };
+            Future<Void> encoding = null;
+            int generation = mParallelRenderer.getGeneration();
+            long start = System.nanoTime();
+
+            encoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MandelbrotPosterEncoder");
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            for (int top = 0, band = 0; top < height; top += bandRows, band ^= 1) {
+                final int[] pixels = bands[band];
+                final int rows = Math.min(bandRows, height - top);
+
+                // The band being compressed is the other one, so this band's array is free.
+                if (mParallelRenderer.renderPixelRows(kernel, top, rows, width, palette, pixels, generation) < rows) {
+                    return false;
+                }
+
+                waitFor(encoding);
+                encoding = encoder.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        writer.writeRows(pixels, 0, rows);
+                        return null;
+                    }
+                });
+
+                if (listener != null) {
+                    listener.onProgress(top + rows, height, System.nanoTime() - start);
+                }
+            }
+
+            waitFor(encoding);
+            writer.finish();
+            return true;
+        } finally {
+
+            if (encoder != null) {
+                // On cancel or failure a band may still be being compressed into the stream.
+                encoder.shutdown();
+                awaitTermination(encoder);
+            }
+
+            writer.close();
+        }
+    }
+
+    /**
+     * Waits for the encoder to finish the band it is compressing, if any.
+     * The wait is not cut short by an interrupt, since the caller may close
+     * the stream straight afterwards; the interrupt is passed on.
+     */
+    private static void awaitTermination(ExecutorService encoder) {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                if (encoder.awaitTermination(1L, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Waits for a band to be compressed, and passes on any exception from the compressor. */
+    private static void waitFor(Future<Void> encoding) throws IOException {
+
+        if (encoding == null) {
+            return;
+        }
+
+        try {
+            encoding.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing the image");
+        } catch (ExecutionException e) {
+
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
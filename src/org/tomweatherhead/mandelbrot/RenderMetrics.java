@@ -0,0 +1,264 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records where the time goes: for each view, the wall time of each
+ * progressive pass, the iteration and pixel rates, and the share of pixels
+ * that reached the iteration limit; and for the frames that show it, the time
+ * spent drawing and waiting for the surface.
+ *
+ * The rates count only the work the kernels did: the pixels they calculated
+ * and the iterations they ran. Pixels kept from the last view, loaded from
+ * the tile cache or store, filled or interpolated are not counted, and the
+ * points that a shortcut (the cardioid test, periodicity checking) finds
+ * inside count only the iterations run before it.
+ *
+ * The renderer records the views, and the render thread the frames. The
+ * records can be shown as a few lines of text (for an on-screen overlay) or
+ * written out as JSON. Only the last MAX_VIEWS views are kept.
+ *
+ * This class has no Android dependencies. It is thread-safe.
+ */
+class RenderMetrics {
+    /** The number of views that are kept */
+    static final int MAX_VIEWS = 100;
+
+    /** The wall time of one pass: the samples of one square width, or the boundary trace */
+    static final class Pass {
+        /** The width of the pass's squares; 0 for the boundary trace */
+        final int squareWidth;
+        long nanos = 0;
+        int bands = 0;
+
+        Pass(int squareWidth) {
+            this.squareWidth = squareWidth;
+        }
+    }
+
+    /** What it took to render one view */
+    static final class ViewRecord {
+        final int zoomExponent;
+        final int maxNumIterations;
+        final int width;
+        final int height;
+        final String kernel;
+
+        /** The time taken by startView(): the kernel, the cached tiles and the first sample */
+        long setupNanos = 0;
+        final List<Pass> passes = new ArrayList<Pass>();
+
+        /** False if the view was left before it was finished */
+        boolean complete = false;
+
+        /** The number of pixels that the kernels calculated for the view */
+        long points = 0;
+
+        /** The number of iterations that the kernels ran for the view */
+        long iterations = 0;
+
+        /** The number of the finished view's pixels that reached the iteration limit */
+        long limitPixels = 0;
+
+        ViewRecord(int zoomExponent, int maxNumIterations, int width, int height, String kernel) {
+            this.zoomExponent = zoomExponent;
+            this.maxNumIterations = maxNumIterations;
+            this.width = width;
+            this.height = height;
+            this.kernel = kernel;
+        }
+
+        /** Returns the total time spent rendering the view, excluding the time between bands. */
+        long getRenderNanos() {
+            long nanos = setupNanos;
+
+            for (Pass pass : passes) {
+                nanos += pass.nanos;
+            }
+
+            return nanos;
+        }
+    }
+
+    /** The views, oldest first; the last one is the current view */
+    private final LinkedList<ViewRecord> mViews = new LinkedList<ViewRecord>();
+
+    private long mFrameCount = 0;
+    private long mDrawNanos = 0;
+    private long mSurfaceWaitNanos = 0;
+
+    /**
+     * Starts the record of a new view, after startView() took setupNanos,
+     * in which the kernels calculated points pixels in iterations iterations.
+     */
+    public synchronized void startView(int zoomExponent, int maxNumIterations, int width, int height,
+            String kernel, long setupNanos, long points, long iterations) {
+        ViewRecord view = new ViewRecord(zoomExponent, maxNumIterations, width, height, kernel);
+
+        view.setupNanos = setupNanos;
+        view.points = points;
+        view.iterations = iterations;
+        mViews.add(view);
+
+        if (mViews.size() > MAX_VIEWS) {
+            mViews.removeFirst();
+        }
+    }
+
+    /**
+     * Adds a band of the current view's pass with the given square width (0
+     * for the boundary trace), in which the kernels calculated points pixels
+     * in iterations iterations.
+     */
+    public synchronized void addBand(int squareWidth, long nanos, long points, long iterations) {
+
+        if (mViews.isEmpty()) {
+            return;
+        }
+
+        ViewRecord view = mViews.getLast();
+
+        view.points += points;
+        view.iterations += iterations;
+
+        List<Pass> passes = view.passes;
+        Pass pass = passes.isEmpty() ? null : passes.get(passes.size() - 1);
+
+        if (pass == null || pass.squareWidth != squareWidth) {
+            pass = new Pass(squareWidth);
+            passes.add(pass);
+        }
+
+        pass.nanos += nanos;
+        ++pass.bands;
+    }
+
+    /** Records that the current view is finished, and the escape values of its pixels. */
+    public synchronized void finishView(int[] escapeValues) {
+
+        if (mViews.isEmpty()) {
+            return;
+        }
+
+        ViewRecord view = mViews.getLast();
+        int insideValue = MandelbrotKernel.insideValue(view.maxNumIterations);
+        long limitPixels = 0;
+
+        for (int value : escapeValues) {
+
+            if (value >= insideValue) {
+                ++limitPixels;
+            }
+        }
+
+        view.complete = true;
+        view.limitPixels = limitPixels;
+    }
+
+    /**
+     * Records a frame: the time spent waiting to lock the surface's canvas,
+     * and the time spent drawing into it.
+     */
+    public synchronized void addFrame(long surfaceWaitNanos, long drawNanos) {
+        ++mFrameCount;
+        mSurfaceWaitNanos += surfaceWaitNanos;
+        mDrawNanos += drawNanos;
+    }
+
+    public synchronized void clear() {
+        mViews.clear();
+        mFrameCount = 0;
+        mDrawNanos = 0;
+        mSurfaceWaitNanos = 0;
+    }
+
+    /** Returns a few short lines about the current view and the frames, for an overlay. */
+    public synchronized List<String> getSummary() {
+        List<String> lines = new ArrayList<String>();
+
+        if (!mViews.isEmpty()) {
+            ViewRecord view = mViews.getLast();
+            StringBuilder passes = new StringBuilder("ms/pass");
+
+            lines.add(String.format(Locale.US, "zoom %d  limit %d  %s", view.zoomExponent,
+                view.maxNumIterations, view.kernel));
+
+            for (Pass pass : view.passes) {
+                passes.append(String.format(Locale.US, " %s:%.1f",
+                    pass.squareWidth > 0 ? Integer.toString(pass.squareWidth) : "trace", pass.nanos * 1.0e-6));
+            }
+
+            lines.add(passes.toString());
+
+            double seconds = view.getRenderNanos() * 1.0e-9;
+
+            if (view.complete) {
+                long pixels = (long)view.width * view.height;
+
+                lines.add(String.format(Locale.US, "%.0f ms  %.1f%% calculated  %.2f Mpixel/s  %.1f Miter/s",
+                    seconds * 1.0e3, 100.0 * view.points / pixels, view.points / seconds * 1.0e-6,
+                    view.iterations / seconds * 1.0e-6));
+                lines.add(String.format(Locale.US, "%.1f%% at limit", 100.0 * view.limitPixels / pixels));
+            } else {
+                lines.add(String.format(Locale.US, "%.0f ms so far", seconds * 1.0e3));
+            }
+        }
+
+        if (mFrameCount > 0) {
+            lines.add(String.format(Locale.US, "%d frames  draw %.2f ms  surface wait %.2f ms", mFrameCount,
+                mDrawNanos * 1.0e-6 / mFrameCount, mSurfaceWaitNanos * 1.0e-6 / mFrameCount));
+        }
+
+        return lines;
+    }
+
+    /** Returns every record as a JSON object. */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder();
+
+        json.append("{\n  \"frames\": {");
+        json.append(String.format(Locale.US, "\"count\": %d, \"drawMs\": %.3f, \"surfaceWaitMs\": %.3f",
+            mFrameCount, mDrawNanos * 1.0e-6, mSurfaceWaitNanos * 1.0e-6));
+        json.append("},\n  \"views\": [");
+
+        boolean first = true;
+
+        for (ViewRecord view : mViews) {
+            long pixels = (long)view.width * view.height;
+            double seconds = view.getRenderNanos() * 1.0e-9;
+
+            json.append(first ? "\n    {" : ",\n    {");
+            first = false;
+            json.append(String.format(Locale.US,
+                "\"zoomExponent\": %d, \"maxNumIterations\": %d, \"width\": %d, \"height\": %d, \"kernel\": \"%s\", ",
+                view.zoomExponent, view.maxNumIterations, view.width, view.height, view.kernel));
+            json.append(String.format(Locale.US, "\"complete\": %b, \"setupMs\": %.3f, \"passes\": [",
+                view.complete, view.setupNanos * 1.0e-6));
+
+            for (int p = 0; p < view.passes.size(); ++p) {
+                Pass pass = view.passes.get(p);
+
+                json.append(String.format(Locale.US, "%s{\"squareWidth\": %d, \"ms\": %.3f, \"bands\": %d}",
+                    p > 0 ? ", " : "", pass.squareWidth, pass.nanos * 1.0e-6, pass.bands));
+            }
+
+            json.append(String.format(Locale.US, "], \"renderMs\": %.3f", seconds * 1.0e3));
+
+            if (view.complete) {
+                json.append(String.format(Locale.US,
+                    ", \"pixels\": %d, \"calculatedPixels\": %d, \"iterations\": %d, \"pixelsPerSecond\": %.0f"
+                    + ", \"iterationsPerSecond\": %.0f, \"limitShare\": %.4f",
+                    pixels, view.points, view.iterations, view.points / seconds, view.iterations / seconds,
+                    (double)view.limitPixels / pixels));
+            }
+
+            json.append("}");
+        }
+
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+}
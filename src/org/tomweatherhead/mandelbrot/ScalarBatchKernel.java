@@ -0,0 +1,21 @@
+package org.tomweatherhead.mandelbrot;
+
+/**
+ * The batch kernel that calculates one point at a time. It is the fallback
+ * for code that works in batches where no vector kernel is available, and
+ * the reference that vector kernels are checked against.
+ */
+final class ScalarBatchKernel implements MandelbrotBatchKernel {
+    static final ScalarBatchKernel INSTANCE = new ScalarBatchKernel();
+
+    private ScalarBatchKernel() {
+    }
+
+    @Override
+    public void iterate(double[] cr, double[] ci, int count, int maxNumIterations, int[] results) {
+
+        for (int i = 0; i < count; ++i) {
+            results[i] = MandelbrotKernel.iterate(cr[i], ci[i], maxNumIterations);
+        }
+    }
+}
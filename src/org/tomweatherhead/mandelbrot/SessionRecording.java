@@ -0,0 +1,154 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the navigation events of a session as they come in (taps, pans
+ * and pinches, home, zoom out, pause and resume, entering and leaving Julia
+ * set mode, and changes of the canvas size or of the whole view), each with
+ * the time it came, so that the session can be replayed against the
+ * renderer, e.g. by the SessionReplay benchmark, to measure how long each
+ * event took to show.
+ *
+ * A recording is written as text, one event per line: the time in
+ * nanoseconds since the first event, the type, and the arguments, separated
+ * by spaces. Lines that start with '#' are comments. Only the first
+ * MAX_EVENTS events are kept.
+ *
+ * This class has no Android dependencies. It is thread-safe.
+ */
+class SessionRecording {
+    /** The number of events that are kept */
+    static final int MAX_EVENTS = 20000;
+
+    /* The event types and their arguments */
+    static final String TAP = "tap";				// x y: the pixel tapped
+    static final String HOME = "home";
+    static final String ZOOM_OUT = "zoomOut";
+    static final String MOVE = "move";				// scale translateX translateY: the end of a gesture
+    static final String PAUSE = "pause";
+    static final String RESUME = "resume";
+    static final String SIZE = "size";				// width height: the canvas size
+    static final String JULIA = "julia";			// x y: the pixel of the Mandelbrot set view picked as c
+    static final String MANDELBROT = "mandelbrot";	// back from Julia set mode
+
+    /*
+     * left top width height zoomExponent maxNumIterationsOverride, then in
+     * Julia set mode: cr ci, and the centre (r i), zoomExponent and
+     * maxNumIterationsOverride of the Mandelbrot set view to go back to
+     */
+    static final String VIEW = "view";
+
+    /** One event: when it came, and what it was */
+    static final class Event {
+        /** The time since the first event of the recording */
+        final long nanos;
+        final String type;
+        final String[] args;
+
+        Event(long nanos, String type, String[] args) {
+            this.nanos = nanos;
+            this.type = type;
+            this.args = args;
+        }
+
+        int getInt(int i) {
+            return Integer.parseInt(args[i]);
+        }
+
+        double getDouble(int i) {
+            return Double.parseDouble(args[i]);
+        }
+    }
+
+    private final List<Event> mEvents = new ArrayList<Event>();
+
+    /** The System.nanoTime() of the first event, or -1 if none has been recorded */
+    private long mStartNanos = -1;
+
+    /** Records an event that has just come; its arguments are written with toString(). */
+    public synchronized void record(String type, Object... args) {
+        long now = System.nanoTime();
+
+        if (mEvents.size() >= MAX_EVENTS) {
+            return;
+        }
+
+        if (mStartNanos < 0) {
+            mStartNanos = now;
+        }
+
+        String[] strings = new String[args.length];
+
+        for (int i = 0; i < args.length; ++i) {
+            strings[i] = args[i].toString();
+        }
+
+        mEvents.add(new Event(now - mStartNanos, type, strings));
+    }
+
+    /** Returns the events so far, oldest first. */
+    public synchronized List<Event> getEvents() {
+        return new ArrayList<Event>(mEvents);
+    }
+
+    public synchronized void clear() {
+        mEvents.clear();
+        mStartNanos = -1;
+    }
+
+    /** Writes the events as text; the writer is not closed. */
+    public synchronized void write(Writer writer) throws IOException {
+        writer.write("# Mandelbrot session: nanoseconds type arguments\n");
+
+        for (Event event : mEvents) {
+            StringBuilder line = new StringBuilder();
+
+            line.append(event.nanos).append(' ').append(event.type);
+
+            for (String arg : event.args) {
+                line.append(' ').append(arg);
+            }
+
+            writer.write(line.append('\n').toString());
+        }
+
+        writer.flush();
+    }
+
+    /** Reads a recording written by write(). */
+    static SessionRecording read(BufferedReader reader) throws IOException {
+        SessionRecording recording = new SessionRecording();
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s+");
+
+            if (fields.length < 2) {
+                throw new IOException("Not an event: " + line);
+            }
+
+            String[] args = new String[fields.length - 2];
+
+            System.arraycopy(fields, 2, args, 0, args.length);
+
+            try {
+                recording.mEvents.add(new Event(Long.parseLong(fields[0]), fields[1], args));
+            } catch (NumberFormatException e) {
+                throw new IOException("Not an event: " + line);
+            }
+        }
+
+        return recording;
+    }
+}
@@ -0,0 +1,166 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memory-bounded cache of the final iteration counts of square tiles of
+ * the complex plane, so that returning to a view that has been rendered
+ * before is a memory copy rather than a full render.
+ *
+ * Tiles are TILE_SIZE pixels square and lie on a grid anchored at the home
+ * view's corner, so the same tile is found again whichever view it was
+ * rendered in. The least recently used tiles are evicted when the cache
+ * grows beyond its byte budget.
+ *
+ * This class has no Android dependencies. It is thread-safe.
+ */
+class TileCache {
+    /** The width and height of a tile, in pixels */
+    static final int TILE_SIZE = 64;
+
+    /** The approximate size of a cached tile, including the key and map entry */
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4 + 96;
+
+    /** Identifies a tile: its place on the pixel grid of one zoom level, and the iteration limit. */
+    static final class Key {
+        final int zoomExponent;
+        final double pixelWidth;
+        final double pixelHeight;
+        final long tileX;
+        final long tileY;
+        final int maxNumIterations;
+
+        /**
+         * @param pixelWidth the width of a pixel; together with the height, this
+         *        distinguishes the grids of different canvas sizes at one zoom level
+         * @param tileX the tile's column, counted from the home view's corner
+         * @param tileY the tile's row, counted from the home view's corner
+         */
+        Key(int zoomExponent, double pixelWidth, double pixelHeight, long tileX, long tileY, int maxNumIterations) {
+            this.zoomExponent = zoomExponent;
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.maxNumIterations = maxNumIterations;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key)o;
+
+            return zoomExponent == k.zoomExponent && pixelWidth == k.pixelWidth && pixelHeight == k.pixelHeight
+                && tileX == k.tileX && tileY == k.tileY && maxNumIterations == k.maxNumIterations;
+        }
+
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(pixelWidth) * 31 + Double.doubleToLongBits(pixelHeight);
+            int h = zoomExponent;
+
+            h = h * 31 + (int)(bits ^ (bits >>> 32));
+            h = h * 31 + (int)(tileX ^ (tileX >>> 32));
+            h = h * 31 + (int)(tileY ^ (tileY >>> 32));
+            h = h * 31 + maxNumIterations;
+            return h;
+        }
+    }
+
+    /** The tiles, from least to most recently used */
+    private final LinkedHashMap<Key, int[]> mTiles = new LinkedHashMap<Key, int[]>(16, 0.75f, true);
+
+    private long mMaxBytes;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+
+    public TileCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the iteration counts of a tile, TILE_SIZE x TILE_SIZE row by
+     * row, or null if the tile is not cached. The caller must not modify the
+     * array.
+     */
+    public synchronized int[] get(Key key) {
+        int[] tile = mTiles.get(key);
+
+        if (tile != null) {
+            ++mHitCount;
+        } else {
+            ++mMissCount;
+        }
+
+        return tile;
+    }
+
+    /** Adds a tile, evicting the least recently used tiles if the cache is full. */
+    public synchronized void put(Key key, int[] tile) {
+        mTiles.put(key, tile);
+        trimToSize(mMaxBytes);
+    }
+
+    /** Returns true if the tile is cached, without counting a hit or a miss or refreshing it. */
+    public synchronized boolean contains(Key key) {
+        return mTiles.containsKey(key);
+    }
+
+    /** Changes the byte budget, evicting tiles if the cache is now too big. */
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    /**
+     * Evicts the least recently used tiles until the cache uses no more than
+     * maxBytes. The byte budget itself is unchanged; use this to give memory
+     * back when the system is running low.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Key, int[]>> i = mTiles.entrySet().iterator();
+
+        while (getSizeInBytes() > maxBytes && i.hasNext()) {
+            i.next();
+            i.remove();
+            ++mEvictionCount;
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getSizeInBytes() {
+        return (long)mTiles.size() * TILE_BYTES;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TileCache[" + mTiles.size() + " tiles, " + getSizeInBytes() + "/" + mMaxBytes + " bytes, "
+            + mHitCount + " hits, " + mMissCount + " misses, " + mEvictionCount + " evictions]";
+    }
+}
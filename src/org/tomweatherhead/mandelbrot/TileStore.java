@@ -0,0 +1,396 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent store of the final iteration counts of tiles, in two
+ * memory-mapped files in a directory, so that tiles outlive the process:
+ * after a restart, a view that has been rendered before is loaded from disk
+ * instead of being calculated again. It is keyed like TileCache, and sits
+ * behind it.
+ *
+ * The data file is an array of fixed-size slots, one tile per slot. A tile
+ * is stored compactly, as 16-bit offsets from the smallest escape value in
+ * it, with one reserved offset for the points in the set; the few tiles
+ * whose escape values span more than that are not stored. The index file
+ * has a header and one entry per slot: the tile's key, its smallest escape
+ * value, when it was last used, and a CRC32 of the key and the slot. The
+ * index is read when the store is opened; the least recently used tile is
+ * evicted when every slot is full.
+ *
+ * Writes are crash-safe without being forced to disk one by one: a slot's
+ * entry is marked free before the slot is overwritten, and the checksum of
+ * an entry is checked whenever its tile is read, so a tile that was torn by
+ * a crash is dropped rather than shown.
+ *
+ * This class has no Android dependencies. It is thread-safe.
+ */
+class TileStore {
+    private static final String INDEX_FILE_NAME = "tiles.idx";
+    private static final String DATA_FILE_NAME = "tiles.dat";
+
+    private static final int MAGIC = 0x4d425453;		// "MBTS"
+    private static final int VERSION = 1;
+
+    private static final int TILE_PIXELS = TileCache.TILE_SIZE * TileCache.TILE_SIZE;
+
+    /** The size of a slot in the data file: one 16-bit offset per pixel */
+    private static final int SLOT_BYTES = TILE_PIXELS * 2;
+
+    /** The offset that stands for the points in the set */
+    private static final int INSIDE_OFFSET = 0xffff;
+
+    /* The index file's header: magic, version, tile size, slot count */
+    private static final int HEADER_BYTES = 16;
+
+    /* The layout of an index entry */
+    private static final int ENTRY_BYTES = 64;
+    private static final int ENTRY_STATE = 0;
+    private static final int ENTRY_ZOOM_EXPONENT = 4;
+    private static final int ENTRY_PIXEL_WIDTH = 8;
+    private static final int ENTRY_PIXEL_HEIGHT = 16;
+    private static final int ENTRY_TILE_X = 24;
+    private static final int ENTRY_TILE_Y = 32;
+    private static final int ENTRY_MAX_NUM_ITERATIONS = 40;
+    private static final int ENTRY_BASE = 44;
+    private static final int ENTRY_LAST_USED = 48;
+    private static final int ENTRY_CHECKSUM = 56;
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_USED = 1;
+
+    private final RandomAccessFile mIndexFile;
+    private final RandomAccessFile mDataFile;
+    private final MappedByteBuffer mIndex;
+    private final MappedByteBuffer mData;
+    private final int mNumSlots;
+
+    /** The slot of each stored tile, from least to most recently used */
+    private final LinkedHashMap<TileCache.Key, Integer> mSlots =
+        new LinkedHashMap<TileCache.Key, Integer>(16, 0.75f, true);
+
+    /** The slots that hold no tile */
+    private final List<Integer> mFreeSlots = new ArrayList<Integer>();
+
+    /** Orders the uses of the tiles; saved with each entry so that the LRU order survives a restart */
+    private long mUseCount = 0;
+
+    private final byte[] mSlotBytes = new byte[SLOT_BYTES];
+    private final CRC32 mCrc = new CRC32();
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+
+    /**
+     * Opens the store in directory, creating it if need be. A store that was
+     * written with a different format or size is emptied.
+     *
+     * @param maxBytes the size of the data file; it holds maxBytes / 8 KB tiles
+     */
+    public TileStore(File directory, long maxBytes) throws IOException {
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the tile store directory " + directory);
+        }
+
+        mNumSlots = (int)Math.max(1, Math.min(maxBytes / SLOT_BYTES, Integer.MAX_VALUE / SLOT_BYTES));
+
+        long indexBytes = HEADER_BYTES + (long)mNumSlots * ENTRY_BYTES;
+        long dataBytes = (long)mNumSlots * SLOT_BYTES;
+
+        mIndexFile = new RandomAccessFile(new File(directory, INDEX_FILE_NAME), "rw");
+        mDataFile = new RandomAccessFile(new File(directory, DATA_FILE_NAME), "rw");
+
+        try {
+            boolean valid = mIndexFile.length() == indexBytes && mDataFile.length() == dataBytes;
+
+            if (!valid) {
+                mIndexFile.setLength(0);
+                mIndexFile.setLength(indexBytes);
+                mDataFile.setLength(dataBytes);
+            }
+
+            mIndex = mIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexBytes);
+            mData = mDataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, dataBytes);
+
+            if (valid && mIndex.getInt(0) == MAGIC && mIndex.getInt(4) == VERSION
+                    && mIndex.getInt(8) == TileCache.TILE_SIZE && mIndex.getInt(12) == mNumSlots) {
+                readIndex();
+            } else {
+                // A file of the right size may still hold entries of another format.
+                for (int slot = 0; slot < mNumSlots; ++slot) {
+                    mIndex.putInt(getEntryOffset(slot) + ENTRY_STATE, STATE_FREE);
+                    mFreeSlots.add(Integer.valueOf(slot));
+                }
+
+                mIndex.putInt(0, MAGIC);
+                mIndex.putInt(4, VERSION);
+                mIndex.putInt(8, TileCache.TILE_SIZE);
+                mIndex.putInt(12, mNumSlots);
+            }
+        } catch (IOException e) {
+            mIndexFile.close();
+            mDataFile.close();
+            throw e;
+        }
+    }
+
+    /** Loads the keys of the stored tiles, in the order in which they were last used. */
+    private void readIndex() {
+        List<Integer> usedSlots = new ArrayList<Integer>();
+
+        for (int slot = 0; slot < mNumSlots; ++slot) {
+
+            if (mIndex.getInt(getEntryOffset(slot) + ENTRY_STATE) == STATE_USED) {
+                usedSlots.add(Integer.valueOf(slot));
+                mUseCount = Math.max(mUseCount, mIndex.getLong(getEntryOffset(slot) + ENTRY_LAST_USED));
+            } else {
+                mFreeSlots.add(Integer.valueOf(slot));
+            }
+        }
+
+        Collections.sort(usedSlots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long useA = mIndex.getLong(getEntryOffset(a.intValue()) + ENTRY_LAST_USED);
+                long useB = mIndex.getLong(getEntryOffset(b.intValue()) + ENTRY_LAST_USED);
+
+                return useA < useB ? -1 : (useA == useB ? 0 : 1);
+            }
+        });
+
+        for (Integer slot : usedSlots) {
+            Integer older = mSlots.put(readKey(slot.intValue()), slot);
+
+            // A key is only ever in one slot, but should a crash leave it in two, keep the newer.
+            if (older != null) {
+                mIndex.putInt(getEntryOffset(older.intValue()) + ENTRY_STATE, STATE_FREE);
+                mFreeSlots.add(older);
+            }
+        }
+    }
+
+    /**
+     * Returns the iteration counts of a tile, TILE_SIZE x TILE_SIZE row by
+     * row, or null if the tile is not stored or did not survive a crash.
+     */
+    public synchronized int[] get(TileCache.Key key) {
+        Integer slot = mSlots.get(key);
+
+        if (slot == null) {
+            ++mMissCount;
+            return null;
+        }
+
+        int entry = getEntryOffset(slot.intValue());
+        ByteBuffer data = mData.duplicate();
+
+        data.position(slot.intValue() * SLOT_BYTES);
+        data.get(mSlotBytes);
+
+        if (getChecksum(key, mIndex.getInt(entry + ENTRY_BASE), mSlotBytes) != mIndex.getInt(entry + ENTRY_CHECKSUM)) {
+            freeSlot(key, slot);
+            ++mMissCount;
+            return null;
+        }
+
+        ++mHitCount;
+        mIndex.putLong(entry + ENTRY_LAST_USED, ++mUseCount);
+        return decode(mSlotBytes, mIndex.getInt(entry + ENTRY_BASE), MandelbrotKernel.insideValue(key.maxNumIterations));
+    }
+
+    /**
+     * Stores a tile, evicting the least recently used tile if every slot is
+     * full.
+     *
+     * @return false if the tile's escape values span too much to be stored
+     */
+    public synchronized boolean put(TileCache.Key key, int[] tile) {
+        int insideValue = MandelbrotKernel.insideValue(key.maxNumIterations);
+        int base = Integer.MAX_VALUE;
+        int top = Integer.MIN_VALUE;
+
+        for (int value : tile) {
+
+            if (value != insideValue) {
+                base = Math.min(base, value);
+                top = Math.max(top, value);
+            }
+        }
+
+        if (base == Integer.MAX_VALUE) {
+            base = 0;		// All inside
+        } else if ((long)top - base >= INSIDE_OFFSET) {
+            return false;
+        }
+
+        Integer slot = mSlots.remove(key);
+
+        if (slot == null) {
+
+            if (mFreeSlots.isEmpty()) {
+                Iterator<Map.Entry<TileCache.Key, Integer>> i = mSlots.entrySet().iterator();
+
+                mFreeSlots.add(i.next().getValue());
+                i.remove();
+                ++mEvictionCount;
+            }
+
+            slot = mFreeSlots.remove(mFreeSlots.size() - 1);
+        }
+
+        int entry = getEntryOffset(slot.intValue());
+
+        // Free the entry first, so that a crash while the slot is being written leaves no entry for it.
+        mIndex.putInt(entry + ENTRY_STATE, STATE_FREE);
+
+        encode(tile, base, insideValue, mSlotBytes);
+
+        ByteBuffer data = mData.duplicate();
+
+        data.position(slot.intValue() * SLOT_BYTES);
+        data.put(mSlotBytes);
+
+        mIndex.putInt(entry + ENTRY_ZOOM_EXPONENT, key.zoomExponent);
+        mIndex.putDouble(entry + ENTRY_PIXEL_WIDTH, key.pixelWidth);
+        mIndex.putDouble(entry + ENTRY_PIXEL_HEIGHT, key.pixelHeight);
+        mIndex.putLong(entry + ENTRY_TILE_X, key.tileX);
+        mIndex.putLong(entry + ENTRY_TILE_Y, key.tileY);
+        mIndex.putInt(entry + ENTRY_MAX_NUM_ITERATIONS, key.maxNumIterations);
+        mIndex.putInt(entry + ENTRY_BASE, base);
+        mIndex.putLong(entry + ENTRY_LAST_USED, ++mUseCount);
+        mIndex.putInt(entry + ENTRY_CHECKSUM, getChecksum(key, base, mSlotBytes));
+        mIndex.putInt(entry + ENTRY_STATE, STATE_USED);
+
+        mSlots.put(key, slot);
+        return true;
+    }
+
+    /** Returns true if the tile is stored, without counting a hit or a miss or refreshing it. */
+    public synchronized boolean contains(TileCache.Key key) {
+        return mSlots.containsKey(key);
+    }
+
+    /** Removes every tile. */
+    public synchronized void clear() {
+
+        for (Integer slot : mSlots.values()) {
+            mIndex.putInt(getEntryOffset(slot.intValue()) + ENTRY_STATE, STATE_FREE);
+            mFreeSlots.add(slot);
+        }
+
+        mSlots.clear();
+    }
+
+    /** Writes the files to disk and closes them. The store may not be used afterwards. */
+    public synchronized void close() {
+        mData.force();
+        mIndex.force();
+
+        try {
+            mIndexFile.close();
+            mDataFile.close();
+        } catch (IOException e) {
+            // The mapped buffers have been forced; there is nothing left to lose.
+        }
+    }
+
+    public synchronized int getTileCount() {
+        return mSlots.size();
+    }
+
+    public int getMaxTileCount() {
+        return mNumSlots;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TileStore[" + mSlots.size() + "/" + mNumSlots + " tiles, "
+            + mHitCount + " hits, " + mMissCount + " misses, " + mEvictionCount + " evictions]";
+    }
+
+    private static int getEntryOffset(int slot) {
+        return HEADER_BYTES + slot * ENTRY_BYTES;
+    }
+
+    private TileCache.Key readKey(int slot) {
+        int entry = getEntryOffset(slot);
+
+        return new TileCache.Key(mIndex.getInt(entry + ENTRY_ZOOM_EXPONENT),
+            mIndex.getDouble(entry + ENTRY_PIXEL_WIDTH), mIndex.getDouble(entry + ENTRY_PIXEL_HEIGHT),
+            mIndex.getLong(entry + ENTRY_TILE_X), mIndex.getLong(entry + ENTRY_TILE_Y),
+            mIndex.getInt(entry + ENTRY_MAX_NUM_ITERATIONS));
+    }
+
+    private void freeSlot(TileCache.Key key, Integer slot) {
+        mIndex.putInt(getEntryOffset(slot.intValue()) + ENTRY_STATE, STATE_FREE);
+        mSlots.remove(key);
+        mFreeSlots.add(slot);
+    }
+
+    /** Returns the CRC32 of a tile's key, its smallest escape value and its slot. */
+    private int getChecksum(TileCache.Key key, int base, byte[] slotBytes) {
+        ByteBuffer header = ByteBuffer.allocate(ENTRY_LAST_USED);
+
+        header.putInt(key.zoomExponent);
+        header.putDouble(key.pixelWidth);
+        header.putDouble(key.pixelHeight);
+        header.putLong(key.tileX);
+        header.putLong(key.tileY);
+        header.putInt(key.maxNumIterations);
+        header.putInt(base);
+
+        mCrc.reset();
+        mCrc.update(header.array(), 0, header.position());
+        mCrc.update(slotBytes, 0, slotBytes.length);
+        return (int)mCrc.getValue();
+    }
+
+    private static void encode(int[] tile, int base, int insideValue, byte[] slotBytes) {
+
+        for (int i = 0; i < TILE_PIXELS; ++i) {
+            int offset = tile[i] == insideValue ? INSIDE_OFFSET : tile[i] - base;
+
+            slotBytes[2 * i] = (byte)(offset >> 8);
+            slotBytes[2 * i + 1] = (byte)offset;
+        }
+    }
+
+    private static int[] decode(byte[] slotBytes, int base, int insideValue) {
+        int[] tile = new int[TILE_PIXELS];
+
+        for (int i = 0; i < TILE_PIXELS; ++i) {
+            int offset = (slotBytes[2 * i] & 0xff) << 8 | (slotBytes[2 * i + 1] & 0xff);
+
+            tile[i] = offset == INSIDE_OFFSET ? insideValue : base + offset;
+        }
+
+        return tile;
+    }
+}
@@ -0,0 +1,166 @@
+package org.tomweatherhead.mandelbrot;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Renders the frames of a zoom animation from the home view down to a
+ * target point, e.g. for a video.
+ *
+ * Rather than rendering every frame from scratch, it renders one keyframe
+ * per 2x zoom, at twice the frame size in each direction, and resamples the
+ * frames between one keyframe and the next from it: the frame at zoom
+ * k + t shows the centre 2^-t of keyframe k, so every frame is a 1x to 2x
+ * reduction of a keyframe and keeps the full resolution. Each keyframe is
+ * the previous one zoomed in on its pixel grid, so the renderer keeps a
+ * quarter of its pixels from the previous keyframe, and only calculates the
+ * other three quarters. Every keyframe has the target zoom level's
+ * iteration limit, so that the points in the set are kept too, and do not
+ * flicker from one keyframe to the next.
+ *
+ * This class has no Android dependencies. It is not thread-safe.
+ */
+class ZoomAnimator {
+    /** The default number of frames for each 2x zoom */
+    static final int DEFAULT_FRAMES_PER_OCTAVE = 30;
+
+    /** Takes the frames of an animation in order, e.g. to write them to files. */
+    interface FrameSink {
+
+        /**
+         * @param index the number of the frame, counting from 0
+         * @param pixels the ARGB colours of the frame, row by row; only valid during the call
+         */
+        void writeFrame(int index, int[] pixels, int width, int height) throws IOException;
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final MandelbrotRenderer mRenderer;
+    private final int[] mFramePixels;
+
+    /* The source columns of the frame's columns, and the weight of the second, for resample() */
+    private final int[] mColumns;
+    private final int[] mColumnWeights;
+
+    private int mFramesPerOctave = DEFAULT_FRAMES_PER_OCTAVE;
+
+    /** Creates an animator for frames of width x height pixels. */
+    public ZoomAnimator(ParallelRenderer parallelRenderer, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mRenderer = new MandelbrotRenderer(parallelRenderer);
+        mRenderer.setCanvasSize(2 * width, 2 * height);
+        mFramePixels = new int[width * height];
+        mColumns = new int[width];
+        mColumnWeights = new int[width];
+    }
+
+    public void setFramesPerOctave(int framesPerOctave) {
+        mFramesPerOctave = Math.max(1, framesPerOctave);
+    }
+
+    public int getFramesPerOctave() {
+        return mFramesPerOctave;
+    }
+
+    /** Returns the renderer of the keyframes, e.g. to set its batch kernel. */
+    public MandelbrotRenderer getRenderer() {
+        return mRenderer;
+    }
+
+    /**
+     * Renders the animation from the home view to zoom level zoomExponent
+     * around (centreR, centreI), and passes each frame to sink.
+     *
+     * @return the number of frames rendered
+     */
+    public int animate(BigDecimal centreR, BigDecimal centreI, int zoomExponent, FrameSink sink)
+            throws IOException {
+        FrameBuffer keyframe = mRenderer.getFrame();
+        int maxNumIterations = MandelbrotRenderer.getDefaultMaxNumIterations(zoomExponent);
+        int index = 0;
+
+        mRenderer.goHome();
+        mRenderer.setMaxNumIterations(maxNumIterations);
+        mRenderer.render();
+
+        while (true) {
+            // The target's position in the keyframe, in pixels.
+            double pixelWidth = mRenderer.getViewWidth() / keyframe.width;
+            double pixelHeight = mRenderer.getViewHeight() / keyframe.height;
+            double targetX = centreR.subtract(mRenderer.getViewLeft()).doubleValue() / pixelWidth;
+            double targetY = mRenderer.getViewTop().subtract(centreI).doubleValue() / pixelHeight;
+            boolean last = mRenderer.getZoomExponent() >= zoomExponent || mRenderer.isAtMaxZoom();
+            int numFrames = last ? 1 : mFramesPerOctave;
+
+            for (int frame = 0; frame < numFrames; ++frame) {
+                double scale = Math.pow(0.5, (double)frame / mFramesPerOctave);
+                double sourceWidth = keyframe.width * scale;
+                double sourceHeight = keyframe.height * scale;
+                double left = Math.max(0.0, Math.min(targetX - sourceWidth / 2.0, keyframe.width - sourceWidth));
+                double top = Math.max(0.0, Math.min(targetY - sourceHeight / 2.0, keyframe.height - sourceHeight));
+
+                resample(keyframe.pixels, keyframe.width, keyframe.height, left, top,
+                        sourceWidth / mWidth, sourceHeight / mHeight);
+                sink.writeFrame(index++, mFramePixels, mWidth, mHeight);
+            }
+
+            if (last) {
+                return index;
+            }
+
+            int x = (int)Math.max(0, Math.min(Math.round(targetX), keyframe.width - 1));
+            int y = (int)Math.max(0, Math.min(Math.round(targetY), keyframe.height - 1));
+
+            mRenderer.zoomIn(x, y);
+            mRenderer.setMaxNumIterations(maxNumIterations);
+            mRenderer.render();
+        }
+    }
+
+    /**
+     * Fills the frame with the source region whose top left corner is at
+     * (left, top) in source pixels, each frame pixel covering scaleX x scaleY
+     * source pixels, by bilinear interpolation at the frame pixels' centres.
+     * At a scale of 2 this is the average of each 2 x 2 block of source
+     * pixels.
+     */
+    private void resample(int[] source, int sourceWidth, int sourceHeight, double left, double top,
+            double scaleX, double scaleY) {
+
+        for (int x = 0; x < mWidth; ++x) {
+            double sourceX = left + (x + 0.5) * scaleX - 0.5;
+
+            mColumns[x] = Math.max(0, Math.min((int)Math.floor(sourceX), sourceWidth - 2));
+            mColumnWeights[x] = (int)Math.round(256.0 * Math.max(0.0, Math.min(sourceX - mColumns[x], 1.0)));
+        }
+
+        for (int y = 0; y < mHeight; ++y) {
+            double sourceY = top + (y + 0.5) * scaleY - 0.5;
+            int y0 = Math.max(0, Math.min((int)Math.floor(sourceY), sourceHeight - 2));
+            int fy = (int)Math.round(256.0 * Math.max(0.0, Math.min(sourceY - y0, 1.0)));
+            int row0 = y0 * sourceWidth;
+            int row1 = row0 + sourceWidth;
+            int rowStart = y * mWidth;
+
+            for (int x = 0; x < mWidth; ++x) {
+                int x0 = mColumns[x];
+                int fx = mColumnWeights[x];
+
+                mFramePixels[rowStart + x] = blend(
+                        blend(source[row0 + x0], source[row0 + x0 + 1], fx),
+                        blend(source[row1 + x0], source[row1 + x0 + 1], fx), fy);
+            }
+        }
+    }
+
+    /** Returns the opaque colour weight/256 of the way from a to b, channel by channel. */
+    private static int blend(int a, int b, int weight) {
+        int red = ((a >> 16) & 0xff) + ((((b >> 16) & 0xff) - ((a >> 16) & 0xff)) * weight >> 8);
+        int green = ((a >> 8) & 0xff) + ((((b >> 8) & 0xff) - ((a >> 8) & 0xff)) * weight >> 8);
+        int blue = (a & 0xff) + (((b & 0xff) - (a & 0xff)) * weight >> 8);
+
+        return Palette.argb(255, red, green, blue);
+    }
+}